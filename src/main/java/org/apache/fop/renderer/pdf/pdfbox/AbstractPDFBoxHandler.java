@@ -22,7 +22,6 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -49,6 +48,9 @@ import org.apache.fop.render.pdf.PDFLogicalStructureHandler;
  */
 public abstract class AbstractPDFBoxHandler {
 
+    /** whether pages are placed as form XObjects, see {@link PDFBoxAdapter#setFormXObjects(boolean)} */
+    private static final boolean FORM_XOBJECTS = Boolean.getBoolean("fop.pdfbox.form-xobjects");
+
     protected String createStreamForPDF(ImagePDF image, PDFPage targetPage, FOUserAgent userAgent,
                                         AffineTransform at, FontInfo fontinfo, Rectangle pos,
                                         Map<Integer, PDFArray> pageNumbers,
@@ -62,66 +64,95 @@ public abstract class AbstractPDFBoxHandler {
         String originalImageUri = image.getInfo().getOriginalURI();
         final int selectedPage = ImageUtil.needPageIndexFromURI(originalImageUri);
 
-        PDDocument pddoc = image.getPDDocument();
-        float pdfVersion = pddoc.getDocument().getVersion();
-        Version inputDocVersion = Version.getValueOf(String.valueOf(pdfVersion));
-        PDFDocument pdfDoc = targetPage.getDocument();
-
-        if (pdfDoc.getPDFVersion().compareTo(inputDocVersion) < 0) {
+        //hold a reference for the whole placement so the document cannot be closed under our feet
+        DocumentHandle handle = image.getDocumentHandle();
+        handle.retain();
+        try {
+            byte[] pageContents = handle.takePageContents(selectedPage);
+            PagePrefetcher.prefetch(handle, selectedPage);
+            handle.getLock().lock();
             try {
-                pdfDoc.setPDFVersion(inputDocVersion);
-            } catch (IllegalStateException e) {
-                getEventProducer(eventBroadcaster).pdfVersionMismatch(this,
-                         pdfDoc.getPDFVersionString(), String.valueOf(pdfVersion));
+                PDDocument pddoc = handle.getDocument();
+                float pdfVersion = pddoc.getDocument().getVersion();
+                Version inputDocVersion = Version.getValueOf(String.valueOf(pdfVersion));
+                PDFDocument pdfDoc = targetPage.getDocument();
+
+                if (pdfDoc.getPDFVersion().compareTo(inputDocVersion) < 0) {
+                    try {
+                        pdfDoc.setPDFVersion(inputDocVersion);
+                    } catch (IllegalStateException e) {
+                        getEventProducer(eventBroadcaster).pdfVersionMismatch(this,
+                                 pdfDoc.getPDFVersionString(), String.valueOf(pdfVersion));
+                    }
+                }
+
+                //Encryption test
+                if (pddoc.isEncrypted()) {
+                    getEventProducer(eventBroadcaster).encryptedPdf(this);
+                    return null;
+                }
+
+                //Warn about potential problems with PDF/A and PDF/X
+                if (pdfDoc.getProfile().isPDFAActive()) {
+                    getEventProducer(eventBroadcaster).pdfAActive(this);
+                }
+                if (pdfDoc.getProfile().isPDFXActive()) {
+                    getEventProducer(eventBroadcaster).pdfXActive(this);
+                }
+
+                CloneCache objectCache = getObjectCache(originalImageUri, handle.getDigest(), userAgent);
+
+                PDPage page = pddoc.getDocumentCatalog().getPages().get(selectedPage);
+
+                if (targetPage.getPDFResources().getParentResources() == null) {
+                    PDFResources res = pdfDoc.getFactory().makeResources();
+                    res.setParentResources(pdfDoc.getResources());
+                    res.addContext(targetPage);
+                    targetPage.put("Resources", res);
+                }
+
+                PDFBoxAdapter adapter = new PDFBoxAdapter(targetPage, objectCache, pageNumbers);
+                if (handler != null) {
+                    adapter.setCurrentMCID(handler.getPageParentTree().length());
+                }
+                adapter.setPageContents(pageContents);
+                adapter.setDocumentHandle(handle);
+                //the logical structure is merged from the cloned objects
+                adapter.setCloneTemplates(CloneTemplate.ENABLED && !userAgent.isAccessibilityEnabled());
+                adapter.setFormXObjects(FORM_XOBJECTS && !userAgent.isAccessibilityEnabled());
+                ImportStatistics statistics = null;
+                if (ImportStatistics.hasListeners()) {
+                    statistics = new ImportStatistics(originalImageUri, selectedPage);
+                    adapter.setStatistics(statistics);
+                }
+                String stream = adapter.createStreamFromPDFBoxPage(pddoc, page, originalImageUri,
+                         at, fontinfo, pos);
+                if (userAgent.isAccessibilityEnabled()) {
+                    TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, page, adapter);
+                    conductor.handleLogicalStructure(pddoc);
+                }
+                if (statistics != null) {
+                    statistics.finish();
+                }
+                return stream;
+            } finally {
+                handle.getLock().unlock();
             }
+        } finally {
+            handle.release();
         }
-
-        //Encryption test
-        if (pddoc.isEncrypted()) {
-            getEventProducer(eventBroadcaster).encryptedPdf(this);
-            return null;
-        }
-
-
-        //Warn about potential problems with PDF/A and PDF/X
-        if (pdfDoc.getProfile().isPDFAActive()) {
-            getEventProducer(eventBroadcaster).pdfAActive(this);
-        }
-        if (pdfDoc.getProfile().isPDFXActive()) {
-            getEventProducer(eventBroadcaster).pdfXActive(this);
-        }
-
-        Map<Object, Object> objectCache = getObjectCache(originalImageUri, userAgent);
-
-        PDPage page = pddoc.getDocumentCatalog().getPages().get(selectedPage);
-
-        if (targetPage.getPDFResources().getParentResources() == null) {
-            PDFResources res = pdfDoc.getFactory().makeResources();
-            res.setParentResources(pdfDoc.getResources());
-            res.addContext(targetPage);
-            targetPage.put("Resources", res);
-        }
-
-        PDFBoxAdapter adapter = new PDFBoxAdapter(targetPage, objectCache, pageNumbers);
-        if (handler != null) {
-            adapter.setCurrentMCID(handler.getPageParentTree().length());
-        }
-        String stream = adapter.createStreamFromPDFBoxPage(pddoc, page, originalImageUri,
-                 at, fontinfo, pos);
-        if (userAgent.isAccessibilityEnabled()) {
-            TaggedPDFConductor conductor = new TaggedPDFConductor(curentSessionElem, handler, page, adapter);
-            conductor.handleLogicalStructure(pddoc);
-        }
-        return stream;
     }
 
-    private Map<Object, Object> getObjectCache(String originalImageUri, FOUserAgent userAgent) {
+    private CloneCache getObjectCache(String originalImageUri, String digest, FOUserAgent userAgent) {
         SoftMapCache objectCache = userAgent.getPDFObjectCache();
-        String path = getImagePath(originalImageUri);
-        if (objectCache.get(path) == null) {
-            objectCache.put(path, new HashMap<Object, Object>());
+        //documents with the same content share the cloned objects, whatever URI they come from
+        String key = digest != null ? "sha-1:" + digest : getImagePath(originalImageUri);
+        CloneCache cache = (CloneCache) objectCache.get(key);
+        if (cache == null) {
+            cache = new ObjectCache(key);
+            objectCache.put(key, cache);
         }
-        return (Map<Object, Object>) objectCache.get(path);
+        return cache;
     }
 
     private String getImagePath(String originalImageUri) {
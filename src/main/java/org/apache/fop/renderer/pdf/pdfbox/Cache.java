@@ -16,77 +16,383 @@
  */
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 abstract class Cache<K, V> {
 
+    /** logging instance */
+    protected static final Log log = LogFactory.getLog(Cache.class);
+
     public enum Type {
-        WEAK, SOFT, STRONG;
+        WEAK, SOFT, STRONG, LRU;
+    }
+
+    /** Default maximum number of entries kept by the LRU cache. */
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    /** Default maximum number of estimated bytes kept by the LRU cache. */
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    /** values currently being made, used to let concurrent callers share one load */
+    private final ConcurrentMap<K, FutureTask<V>> pending = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private CacheStatistics statistics = new CacheStatistics("cache", null);
+
+    private Weigher<? super V> weigher;
+
+    /** maximum time in milliseconds a value is kept after it has been made, -1 for no limit */
+    private long timeToLive = -1;
+
+    /** time at which each value has been stored, only maintained if there is a time to live */
+    private final Map<K, Long> storeTimes = new HashMap<K, Long>();
+
+    /**
+     * Returns the value for the given key, making it if necessary. If several threads ask for
+     * the same missing key at the same time, only the first one makes the value and the others
+     * wait for its result.
+     * @param key the key
+     * @param valueMaker makes the value if it is not cached
+     * @return the value
+     * @throws Exception if making the value fails
+     */
+    public V getValue(final K key, final ValueMaker<V> valueMaker) throws Exception {
+        V value = lookupValue(key);
+        if (value != null) {
+            statistics.recordHit(key);
+            return value;
+        }
+        statistics.recordMiss(key);
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            public V call() throws Exception {
+                //another thread may have stored the value since the first look-up
+                V value = lookupValue(key);
+                if (value == null) {
+                    long start = System.nanoTime();
+                    try {
+                        value = valueMaker.make();
+                    } catch (Exception e) {
+                        statistics.recordLoadFailure();
+                        throw e;
+                    }
+                    statistics.recordLoad(key, Math.max(1, System.nanoTime() - start));
+                    storeValue(key, value);
+                }
+                return value;
+            }
+        });
+        FutureTask<V> loading = pending.putIfAbsent(key, task);
+        if (loading == null) {
+            loading = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+        }
+        return await(loading);
+    }
+
+    /**
+     * Returns the value for the given key if it is cached, without making it.
+     * @param key the key
+     * @return the value or null if it is not cached
+     */
+    public V getIfPresent(K key) {
+        return lookupValue(key);
+    }
+
+    private V await(FutureTask<V> loading) throws Exception {
+        try {
+            return loading.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw ie;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ee;
+        }
+    }
+
+    private synchronized V lookupValue(K key) {
+        V value = lookup(key);
+        if (value != null && timeToLive >= 0) {
+            Long stored = storeTimes.get(key);
+            if (stored != null && System.currentTimeMillis() - stored > timeToLive) {
+                remove(key);
+                evict(key, value);
+                return null;
+            }
+        }
+        return value;
+    }
+
+    private synchronized void storeValue(K key, V value) {
+        statistics.recordStored(weigh(value));
+        store(key, value);
+        if (timeToLive >= 0) {
+            storeTimes.put(key, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Drops all values from the cache.
+     */
+    public synchronized void clear() {
+        for (K key : keys()) {
+            V value = remove(key);
+            if (value != null) {
+                evict(key, value);
+            }
+        }
+    }
+
+    /**
+     * Drops a value from the cache: records the eviction and disposes of the value. Called
+     * by implementations while holding the lock on this cache.
+     * @param key the key
+     * @param value the value
+     */
+    protected final void evict(K key, V value) {
+        storeTimes.remove(key);
+        statistics.recordEviction(key, 1, weigh(value));
+        dispose(value);
+    }
+
+    /**
+     * Estimates the size of a value.
+     * @param value the value
+     * @return the estimated number of bytes, 0 if there is no weigher
+     */
+    protected long weigh(V value) {
+        return weigher != null ? weigher.weigh(value) : 0;
+    }
+
+    /** @return the usage statistics of this cache */
+    public CacheStatistics getStatistics() {
+        return statistics;
     }
 
-    public abstract V getValue(K key, ValueMaker<V> valueMaker) throws Exception;
+    /**
+     * Sets the maximum time a value is kept after it has been made. Expired values are
+     * dropped when they are looked up.
+     * @param timeToLive the time to live in milliseconds, -1 for no limit
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets the object collecting the usage statistics of this cache.
+     * @param statistics the statistics
+     */
+    public void setStatistics(CacheStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Looks up a cached value. Called while holding the lock on this cache.
+     * @param key the key
+     * @return the value or null if it is not cached
+     */
+    protected abstract V lookup(K key);
+
+    /**
+     * Stores a newly made value. Called while holding the lock on this cache.
+     * @param key the key
+     * @param value the value
+     */
+    protected abstract void store(K key, V value);
+
+    /**
+     * Removes a value without disposing of it. Called while holding the lock on this cache.
+     * @param key the key
+     * @return the removed value or null if there was none
+     */
+    protected abstract V remove(K key);
+
+    /**
+     * Returns the keys of the cached values. Called while holding the lock on this cache.
+     * @return a copy of the keys
+     */
+    protected abstract Collection<K> keys();
 
     public static <K, V> Cache<K, V> createCache(Type cacheType) {
+        return createCache(cacheType, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, null);
+    }
+
+    /**
+     * Creates a cache of the given type.
+     * @param cacheType the type of cache
+     * @param maxEntries the maximum number of entries (only used by {@link Type#LRU})
+     * @param maxBytes the maximum number of estimated bytes (only used by {@link Type#LRU})
+     * @param weigher estimates the size of a value in bytes, may be null
+     * @return the new cache
+     */
+    public static <K, V> Cache<K, V> createCache(Type cacheType, int maxEntries, long maxBytes,
+                                                 Weigher<? super V> weigher) {
+        Cache<K, V> cache;
         switch (cacheType) {
             case WEAK:
-                return new WeakDocumentCache<K, V>();
+                cache = new WeakDocumentCache<K, V>();
+                break;
             case SOFT:
-                return new SoftDocumentCache<K, V>();
+                cache = new SoftDocumentCache<K, V>();
+                break;
             case STRONG:
-                return new StrongDocumentCache<K, V>();
+                cache = new StrongDocumentCache<K, V>();
+                break;
+            case LRU:
+                cache = new LRUDocumentCache<K, V>(maxEntries, maxBytes);
+                break;
             default:
-                return createDefaultCache();
+                cache = createDefaultCache();
         }
+        cache.weigher = weigher;
+        return cache;
     }
 
     private static <K, V> Cache<K, V> createDefaultCache() {
         return new WeakDocumentCache<K, V>();
     }
 
+    /**
+     * Disposes of a value that has been dropped from a cache. Values implementing
+     * {@link Closeable} are closed.
+     * @param value the value
+     */
+    protected void dispose(V value) {
+        if (value instanceof Closeable) {
+            try {
+                ((Closeable) value).close();
+            } catch (IOException ioe) {
+                log.warn("Error while disposing of cache entry: " + ioe.getMessage());
+            }
+        }
+    }
+
     private static class StrongDocumentCache<K, V> extends Cache<K, V> {
 
         private final Map<K, V> cache = new HashMap<K, V>();
 
         @Override
-        public V getValue(K key, ValueMaker<V> valueMaker) throws Exception {
-            V value = cache.get(key);
-            if (value == null) {
-                value = valueMaker.make();
-                cache.put(key, value);
+        protected V lookup(K key) {
+            return cache.get(key);
+        }
+
+        @Override
+        protected void store(K key, V value) {
+            V previous = cache.put(key, value);
+            if (previous != null && previous != value) {
+                evict(key, previous);
             }
-            return value;
+        }
+
+        @Override
+        protected V remove(K key) {
+            return cache.remove(key);
+        }
+
+        @Override
+        protected Collection<K> keys() {
+            return new ArrayList<K>(cache.keySet());
         }
     }
 
+    /**
+     * Keeps values until the garbage collector decides to reclaim memory. The values are held
+     * strongly but each one is paired with a softly reachable marker: once the marker has been
+     * cleared, the value is dropped and disposed of on the next access to the cache.
+     */
     private static class SoftDocumentCache<K, V> extends Cache<K, V> {
 
-        private final Map<K, SoftReference<Object>> softKeys = new HashMap<K, SoftReference<Object>>();
+        private final Map<K, SoftValue<K, V>> cache = new HashMap<K, SoftValue<K, V>>();
 
-        private final Map<Object, V> cache = new WeakHashMap<Object, V>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
 
         @Override
-        public V getValue(K key, ValueMaker<V> valueMaker) throws Exception {
-            SoftReference<Object> reference = softKeys.get(key);
-            Object softKey;
-            if (reference == null || reference.get() == null) {
-                softKey = new Object();
-                reference = new SoftReference<Object>(softKey);
-                softKeys.put(key, reference);
-            } else {
-                softKey = reference.get();
+        protected V lookup(K key) {
+            expungeClearedValues();
+            SoftValue<K, V> entry = cache.get(key);
+            //touching the marker tells the garbage collector that the value is still in use
+            return entry != null && entry.get() != null ? entry.value : null;
+        }
+
+        @Override
+        protected void store(K key, V value) {
+            expungeClearedValues();
+            SoftValue<K, V> previous = cache.put(key, new SoftValue<K, V>(key, value, queue));
+            if (previous != null && previous.value != value) {
+                evict(key, previous.value);
             }
-            V value = cache.get(softKey);
-            if (value == null) {
-                value = valueMaker.make();
-                cache.put(softKey, value);
+        }
+
+        @Override
+        protected V remove(K key) {
+            SoftValue<K, V> entry = cache.remove(key);
+            return entry != null ? entry.value : null;
+        }
+
+        @Override
+        protected Collection<K> keys() {
+            return new ArrayList<K>(cache.keySet());
+        }
+
+        @SuppressWarnings("unchecked")
+        private void expungeClearedValues() {
+            Reference<?> ref;
+            while ((ref = queue.poll()) != null) {
+                SoftValue<K, V> entry = (SoftValue<K, V>) ref;
+                if (cache.get(entry.key) == entry) {
+                    cache.remove(entry.key);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Dropping " + entry.key + " from document cache");
+                    }
+                    evict(entry.key, entry.value);
+                }
             }
-            return value;
         }
     }
 
+    private static final class SoftValue<K, V> extends SoftReference<Object> {
+
+        private final K key;
+
+        private final V value;
+
+        private SoftValue(K key, V value, ReferenceQueue<Object> queue) {
+            super(new Object(), queue);
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Keeps only the value used last. The previous value is disposed of when it is replaced.
+     */
     private static class WeakDocumentCache<K, V> extends Cache<K, V> {
 
         private V currentValue;
@@ -94,16 +400,130 @@ abstract class Cache<K, V> {
         private K currentKey;
 
         @Override
-        public V getValue(K key, ValueMaker<V> valueMaker) throws Exception {
+        protected V lookup(K key) {
+            return key.equals(currentKey) ? currentValue : null;
+        }
+
+        @Override
+        protected void store(K key, V value) {
+            V previous = currentValue;
+            K previousKey = currentKey;
+            currentKey = key;
+            currentValue = value;
+            if (previous != null && previous != value) {
+                evict(previousKey, previous);
+            }
+        }
+
+        @Override
+        protected V remove(K key) {
             if (!key.equals(currentKey)) {
-                currentKey = key;
-                currentValue = valueMaker.make();
+                return null;
+            }
+            V value = currentValue;
+            currentKey = null;
+            currentValue = null;
+            return value;
+        }
+
+        @Override
+        protected Collection<K> keys() {
+            return currentKey != null ? Collections.singletonList(currentKey) : Collections.<K>emptyList();
+        }
+    }
+
+    /**
+     * Keeps the most recently used values, bounded both by the number of entries and by
+     * the estimated number of bytes they occupy. Evicted values are disposed of immediately.
+     */
+    private static class LRUDocumentCache<K, V> extends Cache<K, V> {
+
+        private final int maxEntries;
+
+        private final long maxBytes;
+
+        private final Map<K, WeighedValue<V>> cache = new LinkedHashMap<K, WeighedValue<V>>(16, 0.75f, true);
+
+        private long residentBytes;
+
+        public LRUDocumentCache(int maxEntries, long maxBytes) {
+            this.maxEntries = Math.max(1, maxEntries);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        protected V lookup(K key) {
+            WeighedValue<V> entry = cache.get(key);
+            return entry != null ? entry.value : null;
+        }
+
+        @Override
+        protected void store(K key, V value) {
+            long weight = weigh(value);
+            WeighedValue<V> previous = cache.put(key, new WeighedValue<V>(value, weight));
+            if (previous != null) {
+                residentBytes -= previous.weight;
+                if (previous.value != value) {
+                    evict(key, previous.value);
+                }
+            }
+            residentBytes += weight;
+            evict(key);
+        }
+
+        @Override
+        protected V remove(K key) {
+            WeighedValue<V> entry = cache.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            residentBytes -= entry.weight;
+            return entry.value;
+        }
+
+        @Override
+        protected Collection<K> keys() {
+            return new ArrayList<K>(cache.keySet());
+        }
+
+        private void evict(K newestKey) {
+            Iterator<Map.Entry<K, WeighedValue<V>>> iter = cache.entrySet().iterator();
+            while ((cache.size() > maxEntries || residentBytes > maxBytes) && iter.hasNext()) {
+                Map.Entry<K, WeighedValue<V>> eldest = iter.next();
+                if (eldest.getKey().equals(newestKey)) {
+                    //the value just loaded is always kept, even if it exceeds the byte limit on its own
+                    break;
+                }
+                iter.remove();
+                residentBytes -= eldest.getValue().weight;
+                if (log.isDebugEnabled()) {
+                    log.debug("Evicting " + eldest.getKey() + " from document cache");
+                }
+                evict(eldest.getKey(), eldest.getValue().value);
             }
-            return currentValue;
+        }
+    }
+
+    private static final class WeighedValue<V> {
+
+        private final V value;
+
+        private final long weight;
+
+        private WeighedValue(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
         }
     }
 
     public interface ValueMaker<V> {
         V make() throws Exception;
     }
+
+    /**
+     * Estimates the number of bytes a cached value occupies.
+     */
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
 }
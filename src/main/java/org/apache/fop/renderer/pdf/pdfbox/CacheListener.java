@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+/**
+ * Receives the events of the document caches and object caches used when importing PDF
+ * images. Listeners are registered with {@link CacheStatistics#addListener(CacheListener)}
+ * and are called synchronously by the thread using the cache, so they should return quickly.
+ */
+public interface CacheListener {
+
+    /**
+     * Called when a look-up finds a cached value.
+     * @param cache the statistics of the cache
+     * @param key the key
+     */
+    void hit(CacheStatistics cache, Object key);
+
+    /**
+     * Called when a look-up does not find a cached value.
+     * @param cache the statistics of the cache
+     * @param key the key
+     */
+    void miss(CacheStatistics cache, Object key);
+
+    /**
+     * Called when a value has been loaded into a cache.
+     * @param cache the statistics of the cache
+     * @param key the key
+     * @param nanos the time needed to load the value, in nanoseconds (0 if not measured)
+     */
+    void loaded(CacheStatistics cache, Object key, long nanos);
+
+    /**
+     * Called when a value has been dropped from a cache.
+     * @param cache the statistics of the cache
+     * @param key the key (null if it is no longer known)
+     */
+    void evicted(CacheStatistics cache, Object key);
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Usage statistics of a cache. There is one instance per cache and one global instance per kind
+ * of cache ({@link #DOCUMENT_CACHES} and {@link #OBJECT_CACHES}) which sums up the statistics of
+ * all caches of that kind.
+ * <p>
+ * If the system property <code>fop.pdfbox.cache-mbeans</code> is set to true, the global
+ * statistics and those of each document cache are registered as MBeans in the platform MBean
+ * server under the domain <code>org.apache.fop.render.pdf.pdfbox</code>. The MBean of a
+ * document cache is unregistered once the cache has been garbage collected.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(CacheStatistics.class);
+
+    private static final boolean REGISTER_MBEANS = Boolean.getBoolean("fop.pdfbox.cache-mbeans");
+
+    private static final String DOMAIN = "org.apache.fop.render.pdf.pdfbox";
+
+    /** upper bounds (exclusive, in milliseconds) of the load latency histogram buckets */
+    private static final long[] LATENCY_BUCKETS = {1, 10, 100, 1000, 10000};
+
+    private static final CopyOnWriteArrayList<CacheListener> LISTENERS
+            = new CopyOnWriteArrayList<CacheListener>();
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    /** keeps the registrations reachable until their owners have been collected */
+    private static final Set<Registration> REGISTRATIONS
+            = Collections.synchronizedSet(new HashSet<Registration>());
+
+    /** statistics of all document caches of the preloader */
+    public static final CacheStatistics DOCUMENT_CACHES = createGlobal("documents");
+
+    /** statistics of all object caches used to share cloned objects between pages of a PDF */
+    public static final CacheStatistics OBJECT_CACHES = createGlobal("objects");
+
+    private final String name;
+
+    private final CacheStatistics parent;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong timedLoads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong residentCount = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    CacheStatistics(String name, CacheStatistics parent) {
+        this.name = name;
+        this.parent = parent;
+    }
+
+    private static CacheStatistics createGlobal(String name) {
+        CacheStatistics statistics = new CacheStatistics(name, null);
+        if (REGISTER_MBEANS) {
+            statistics.register();
+        }
+        return statistics;
+    }
+
+    /**
+     * Creates the statistics of a new document cache.
+     * @param cache the cache, its MBean (if any) is unregistered once it has been collected
+     * @return the statistics
+     */
+    static CacheStatistics createDocumentCacheStatistics(Object cache) {
+        CacheStatistics statistics = new CacheStatistics(DOCUMENT_CACHES.getName() + "-"
+                + SEQUENCE.incrementAndGet(), DOCUMENT_CACHES);
+        if (REGISTER_MBEANS) {
+            expungeStaleRegistrations();
+            ObjectName objectName = statistics.register();
+            if (objectName != null) {
+                REGISTRATIONS.add(new Registration(cache, objectName));
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Creates the statistics of a new object cache.
+     * @param path the path of the PDF whose objects are cached
+     * @return the statistics
+     */
+    static CacheStatistics createObjectCacheStatistics(String path) {
+        return new CacheStatistics(OBJECT_CACHES.getName() + ":" + path, OBJECT_CACHES);
+    }
+
+    /**
+     * Adds a listener which is notified of the events of all caches.
+     * @param listener the listener
+     */
+    public static void addListener(CacheListener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener
+     */
+    public static void removeListener(CacheListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /** @return true if any listener is registered, callers may skip building keys otherwise */
+    static boolean hasListeners() {
+        return !LISTENERS.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return name;
+    }
+
+    /** {@inheritDoc} */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** {@inheritDoc} */
+    public double getHitRatio() {
+        long h = hits.get();
+        long lookups = h + misses.get();
+        return lookups > 0 ? (double) h / lookups : 0;
+    }
+
+    /** {@inheritDoc} */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getLoadFailures() {
+        return loadFailures.get();
+    }
+
+    /** {@inheritDoc} */
+    public double getAverageLoadTime() {
+        long count = timedLoads.get();
+        return count > 0 ? loadNanos.get() / 1e6 / count : 0;
+    }
+
+    /** {@inheritDoc} */
+    public long[] getLoadLatencyBuckets() {
+        return LATENCY_BUCKETS.clone();
+    }
+
+    /** {@inheritDoc} */
+    public long[] getLoadLatencyHistogram() {
+        long[] histogram = new long[latencyHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /** {@inheritDoc} */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getResidentCount() {
+        return residentCount.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        loads.set(0);
+        loadFailures.set(0);
+        timedLoads.set(0);
+        loadNanos.set(0);
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            latencyHistogram.set(i, 0);
+        }
+        evictions.set(0);
+    }
+
+    void recordHit(Object key) {
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.hits.incrementAndGet();
+        }
+        for (CacheListener listener : LISTENERS) {
+            listener.hit(this, key);
+        }
+    }
+
+    void recordMiss(Object key) {
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.misses.incrementAndGet();
+        }
+        for (CacheListener listener : LISTENERS) {
+            listener.miss(this, key);
+        }
+    }
+
+    /**
+     * Records a successful load.
+     * @param key the key
+     * @param nanos the time needed to load the value in nanoseconds, 0 if not measured
+     */
+    void recordLoad(Object key, long nanos) {
+        int bucket = 0;
+        long millis = nanos / 1000000;
+        while (bucket < LATENCY_BUCKETS.length && millis >= LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.loads.incrementAndGet();
+            if (nanos > 0) {
+                s.timedLoads.incrementAndGet();
+                s.loadNanos.addAndGet(nanos);
+                s.latencyHistogram.incrementAndGet(bucket);
+            }
+        }
+        for (CacheListener listener : LISTENERS) {
+            listener.loaded(this, key, nanos);
+        }
+    }
+
+    void recordLoadFailure() {
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.loadFailures.incrementAndGet();
+        }
+    }
+
+    void recordStored(long bytes) {
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.residentCount.incrementAndGet();
+            s.residentBytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Records values dropped from the cache.
+     * @param key the key of the value or null if several values have been dropped at once
+     * @param count the number of values
+     * @param bytes their estimated size in bytes
+     */
+    void recordEviction(Object key, long count, long bytes) {
+        for (CacheStatistics s = this; s != null; s = s.parent) {
+            s.evictions.addAndGet(count);
+            s.residentCount.addAndGet(-count);
+            s.residentBytes.addAndGet(-bytes);
+        }
+        for (CacheListener listener : LISTENERS) {
+            listener.evicted(this, key);
+        }
+    }
+
+    private ObjectName register() {
+        try {
+            Hashtable<String, String> properties = new Hashtable<String, String>();
+            properties.put("type", "CacheStatistics");
+            properties.put("name", ObjectName.quote(name));
+            ObjectName objectName = new ObjectName(DOMAIN, properties);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            log.warn("Could not register cache statistics " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void expungeStaleRegistrations() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Reference<?> ref;
+        while ((ref = QUEUE.poll()) != null) {
+            REGISTRATIONS.remove(ref);
+            try {
+                server.unregisterMBean(((Registration) ref).objectName);
+            } catch (JMException e) {
+                log.debug("Could not unregister cache statistics: " + e.getMessage());
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return name + " [hits=" + getHits() + ", misses=" + getMisses() + ", loads=" + getLoads()
+                + ", evictions=" + getEvictions() + ", resident=" + getResidentCount()
+                + " (" + getResidentBytes() + " bytes)]";
+    }
+
+    private static final class Registration extends WeakReference<Object> {
+
+        private final ObjectName objectName;
+
+        private Registration(Object owner, ObjectName objectName) {
+            super(owner, QUEUE);
+            this.objectName = objectName;
+        }
+    }
+}
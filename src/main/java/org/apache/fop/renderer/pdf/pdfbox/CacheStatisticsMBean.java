@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+/**
+ * Management interface of {@link CacheStatistics}.
+ */
+public interface CacheStatisticsMBean {
+
+    /** @return the name of the cache */
+    String getName();
+
+    /** @return the number of look-ups which found a cached value */
+    long getHits();
+
+    /** @return the number of look-ups which did not find a cached value */
+    long getMisses();
+
+    /** @return the ratio of hits to look-ups, 0 if there has been no look-up */
+    double getHitRatio();
+
+    /** @return the number of values loaded successfully */
+    long getLoads();
+
+    /** @return the number of failed loads */
+    long getLoadFailures();
+
+    /** @return the average time in milliseconds needed to load a value */
+    double getAverageLoadTime();
+
+    /** @return the upper bounds (exclusive, in milliseconds) of the load latency histogram buckets */
+    long[] getLoadLatencyBuckets();
+
+    /**
+     * Returns the load latency histogram. Its last bucket counts the loads which took longer than
+     * the largest bound returned by {@link #getLoadLatencyBuckets()}.
+     * @return the number of loads per bucket
+     */
+    long[] getLoadLatencyHistogram();
+
+    /** @return the number of values dropped from the cache */
+    long getEvictions();
+
+    /** @return the number of values currently held */
+    long getResidentCount();
+
+    /** @return the estimated number of bytes currently held */
+    long getResidentBytes();
+
+    /** Resets all counters except the resident count and bytes. */
+    void reset();
+}
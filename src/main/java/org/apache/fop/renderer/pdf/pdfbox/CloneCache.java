@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSObject;
+
+/**
+ * Maps the objects of a source PDF to their clones in the target document, so objects shared
+ * by several pages are cloned only once. Indirect objects are keyed by their object and
+ * generation number packed into a <code>long</code>, in an open-addressing table which needs
+ * no allocation per look-up; direct dictionaries are keyed by identity.
+ * <p>
+ * A clone cache is not thread-safe.
+ */
+public class CloneCache {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** packed keys of the indirect objects, a slot is free if its value is null */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    private Object[] values = new Object[INITIAL_CAPACITY];
+
+    private int indirectCount;
+
+    private final Map<COSDictionary, Object> directClones = new IdentityHashMap<COSDictionary, Object>();
+
+    /** pages imported as form XObjects, keyed by the identity of their page dictionary */
+    private final Map<COSDictionary, Object> forms = new IdentityHashMap<COSDictionary, Object>();
+
+    /**
+     * Packs the object number and generation number of an indirect object into one key.
+     * @param objectNumber the object number
+     * @param generationNumber the generation number
+     * @return the key
+     */
+    public static long getKey(long objectNumber, int generationNumber) {
+        return (objectNumber << 16) | (generationNumber & 0xFFFF);
+    }
+
+    /**
+     * Returns the key of an indirect object.
+     * @param object the indirect object
+     * @return the key
+     */
+    public static long getKey(COSObject object) {
+        return getKey(object.getObjectNumber(), object.getGenerationNumber());
+    }
+
+    /**
+     * Returns the clone of an indirect object.
+     * @param key the key of the indirect object, see {@link #getKey(COSObject)}
+     * @return the clone or null if the object has not been cloned yet
+     */
+    public Object getIndirect(long key) {
+        long[] keys = this.keys;
+        Object[] values = this.values;
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the clone of an indirect object.
+     * @param key the key of the indirect object, see {@link #getKey(COSObject)}
+     * @param clone the clone, null is not recorded
+     * @return the clone previously recorded for the object or null
+     */
+    public Object putIndirect(long key, Object clone) {
+        if (clone == null) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                Object previous = values[i];
+                values[i] = clone;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = clone;
+        //keep the load factor at or below 1/2
+        if (++indirectCount * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the clone of a direct dictionary.
+     * @param dictionary the dictionary
+     * @return the clone or null if the dictionary has not been cloned yet
+     */
+    public Object getDirect(COSDictionary dictionary) {
+        return directClones.get(dictionary);
+    }
+
+    /**
+     * Records the clone of a direct dictionary.
+     * @param dictionary the dictionary
+     * @param clone the clone
+     * @return the clone previously recorded for the dictionary or null
+     */
+    public Object putDirect(COSDictionary dictionary, Object clone) {
+        return directClones.put(dictionary, clone);
+    }
+
+    /**
+     * Returns the form XObject a page has been imported as.
+     * @param page the page dictionary
+     * @return the form XObject or null if the page has not been imported as one yet
+     */
+    public Object getForm(COSDictionary page) {
+        return forms.get(page);
+    }
+
+    /**
+     * Records the form XObject a page has been imported as.
+     * @param page the page dictionary
+     * @param form the form XObject
+     * @return the form XObject previously recorded for the page or null
+     */
+    public Object putForm(COSDictionary page, Object form) {
+        return forms.put(page, form);
+    }
+
+    /** @return the number of objects whose clones are recorded */
+    public int size() {
+        return indirectCount + directClones.size() + forms.size();
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        //object numbers are dense, spread them over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
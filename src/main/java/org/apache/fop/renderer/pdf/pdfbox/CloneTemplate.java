@@ -0,0 +1,504 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import org.apache.fop.pdf.PDFDictionary;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFName;
+import org.apache.fop.pdf.PDFNumber;
+import org.apache.fop.pdf.PDFObject;
+import org.apache.fop.pdf.PDFResources;
+import org.apache.fop.pdf.PDFText;
+import org.apache.fop.pdf.PDFWritable;
+
+/**
+ * Relocatable form of an imported page: its rewritten content, its geometry and the resources
+ * it uses, pre-serialized as byte fragments with placeholders for the object numbers. Once a
+ * page has been imported, later imports into other output documents emit the template by
+ * assigning new object numbers only, without walking the source document again.
+ * <p>
+ * Templates are kept by the {@link DocumentHandle} of the source document, so they are shared
+ * by all output documents as long as the document cache keeps the document. Their objects are
+ * written as they are, so templates are not used if the output is encrypted, if fonts are
+ * merged or if the logical structure or the annotations of the page are imported.
+ */
+final class CloneTemplate {
+
+    /** if true, imported pages are recorded as templates, see {@link PDFBoxAdapter#setCloneTemplates(boolean)} */
+    static final boolean ENABLED = Boolean.getBoolean("fop.pdfbox.clone-templates");
+
+    /** the maximum size of the templates kept per source document */
+    static final long MAX_BYTES = Long.getLong("fop.pdfbox.clone-templates.max-bytes", 16L * 1024 * 1024);
+
+    /** direct objects nested deeper than this are not recorded */
+    private static final int MAX_DEPTH = 256;
+
+    private static final byte[][] NO_SEGMENTS = new byte[0][];
+
+    private static final int[] NO_REFS = new int[0];
+
+    private final String content;
+
+    private final PDRectangle mediaBox;
+
+    private final PDRectangle viewBox;
+
+    private final int rotation;
+
+    private final List<TemplateObject> objects;
+
+    private final List<ResourceEntry> resources;
+
+    private final long size;
+
+    private CloneTemplate(String content, PDRectangle mediaBox, PDRectangle viewBox, int rotation,
+                          List<TemplateObject> objects, List<ResourceEntry> resources) {
+        this.content = content;
+        this.mediaBox = mediaBox;
+        this.viewBox = viewBox;
+        this.rotation = rotation;
+        this.objects = objects;
+        this.resources = resources;
+        long size = content.length();
+        for (TemplateObject object : objects) {
+            size += object.body.size() + (object.data != null ? object.data.length : 0);
+        }
+        for (ResourceEntry entry : resources) {
+            size += entry.value.size();
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns the key of the template of a page.
+     * @param page the source page
+     * @param key the key the page is imported with, which the resource names are derived from
+     * @return the key
+     */
+    static Object getKey(PDPage page, String key) {
+        return new TemplateKey(page.getCOSObject(), key);
+    }
+
+    /**
+     * Records the template of an imported page.
+     * @param usedResources the resources used by the page
+     * @param uniqueName the names the resources are imported with
+     * @param content the rewritten page content
+     * @param mediaBox the media box of the page
+     * @param viewBox the visible area of the page
+     * @param rotation the normalized rotation of the page
+     * @return the template or null if the resources cannot be recorded
+     * @throws IOException if the stream data cannot be read
+     */
+    static CloneTemplate record(COSDictionary usedResources, UniqueName uniqueName, String content,
+                                PDRectangle mediaBox, PDRectangle viewBox, int rotation) throws IOException {
+        Recorder recorder = new Recorder();
+        List<ResourceEntry> resources = new ArrayList<ResourceEntry>();
+        for (Map.Entry<COSName, COSBase> e : usedResources.entrySet()) {
+            COSBase category = e.getValue();
+            if (category instanceof COSObject) {
+                category = ((COSObject) category).getObject();
+            }
+            //other entries, such as the procedure sets, are not imported
+            if (!(category instanceof COSDictionary)) {
+                continue;
+            }
+            for (Map.Entry<COSName, COSBase> r : ((COSDictionary) category).entrySet()) {
+                Fragment value = recorder.recordValue(r.getValue());
+                boolean font = COSName.FONT.equals(e.getKey());
+                //fonts are added as dictionaries which must be indirect objects
+                if (value == null || (font && value.getReference() < 0)) {
+                    return null;
+                }
+                resources.add(new ResourceEntry(font ? null : e.getKey().getName(),
+                        uniqueName.getName(r.getKey()), value));
+            }
+        }
+        List<TemplateObject> objects = recorder.recordObjects();
+        if (objects == null) {
+            return null;
+        }
+        return new CloneTemplate(content, mediaBox, viewBox, rotation, objects, resources);
+    }
+
+    /** @return the rewritten page content */
+    String getContent() {
+        return content;
+    }
+
+    /** @return the media box of the page */
+    PDRectangle getMediaBox() {
+        return mediaBox;
+    }
+
+    /** @return the visible area of the page */
+    PDRectangle getViewBox() {
+        return viewBox;
+    }
+
+    /** @return the normalized rotation of the page */
+    int getRotation() {
+        return rotation;
+    }
+
+    /** @return the approximate size of the template in bytes */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Adds the resources of the template to a target page. Objects which have already been
+     * imported into the target document, from this or another template or by cloning, are
+     * reused; the others are registered with new object numbers.
+     * @param pdfDoc the target document
+     * @param pageResources the resources of the target page
+     * @param clonedVersion the clones of the source objects in the target document
+     */
+    void instantiate(PDFDocument pdfDoc, PDFResources pageResources, CloneCache clonedVersion) {
+        PDFObject[] instances = new PDFObject[objects.size()];
+        for (int i = 0; i < instances.length; i++) {
+            TemplateObject object = objects.get(i);
+            instances[i] = (PDFObject) clonedVersion.getIndirect(object.sourceKey);
+            if (instances[i] == null) {
+                instances[i] = new RelocatedObject(object, instances);
+                pdfDoc.registerObject(instances[i]);
+                clonedVersion.putIndirect(object.sourceKey, instances[i]);
+            }
+        }
+        for (ResourceEntry entry : resources) {
+            int ref = entry.value.getReference();
+            Object value = ref >= 0 ? instances[ref] : new RelocatedValue(entry.value, instances);
+            if (entry.category == null) {
+                pageResources.addFont(entry.name, (PDFDictionary) value);
+            } else {
+                PDFDictionary dict = (PDFDictionary) pageResources.get(entry.category);
+                if (dict == null) {
+                    dict = new PDFDictionary(pageResources);
+                }
+                dict.put(entry.name, value);
+                pageResources.put(entry.category, dict);
+            }
+        }
+    }
+
+    /** serialized text with placeholders for the object numbers of other template objects */
+    private static final class Fragment {
+
+        private final byte[][] segments;
+
+        /** the template objects referenced after each segment but the last one */
+        private final int[] refs;
+
+        private Fragment(byte[][] segments, int[] refs) {
+            this.segments = segments;
+            this.refs = refs;
+        }
+
+        /** @return the referenced template object if the fragment is just a reference, else -1 */
+        int getReference() {
+            return refs.length == 1 && segments[0].length == 0 && segments[1].length == 0 ? refs[0] : -1;
+        }
+
+        int size() {
+            int size = 0;
+            for (byte[] segment : segments) {
+                size += segment.length;
+            }
+            return size + refs.length * 8;
+        }
+
+        void write(StringBuilder sb, PDFObject[] instances) {
+            for (int i = 0; i < segments.length; i++) {
+                for (byte b : segments[i]) {
+                    sb.append((char) (b & 0xFF));
+                }
+                if (i < refs.length) {
+                    sb.append(instances[refs[i]].referencePDF());
+                }
+            }
+        }
+    }
+
+    private static final class TemplateObject {
+
+        /** the key of the source object in a {@link CloneCache} */
+        private final long sourceKey;
+
+        private Fragment body;
+
+        /** the encoded data if the object is a stream */
+        private byte[] data;
+
+        private TemplateObject(long sourceKey) {
+            this.sourceKey = sourceKey;
+        }
+    }
+
+    private static final class ResourceEntry {
+
+        /** the resource category or null for a font */
+        private final String category;
+
+        private final String name;
+
+        private final Fragment value;
+
+        private ResourceEntry(String category, String name, Fragment value) {
+            this.category = category;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private static final class TemplateKey {
+
+        private final COSDictionary page;
+
+        private final String key;
+
+        private TemplateKey(COSDictionary page, String key) {
+            this.page = page;
+            this.key = key;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TemplateKey)) {
+                return false;
+            }
+            TemplateKey other = (TemplateKey) obj;
+            return page == other.page && key.equals(other.key);
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(page) * 31 + key.hashCode();
+        }
+    }
+
+    /** serializes a graph of source objects, following the indirect references */
+    private static final class Recorder {
+
+        private final List<TemplateObject> objects = new ArrayList<TemplateObject>();
+
+        private final List<COSBase> sources = new ArrayList<COSBase>();
+
+        private final Map<Long, Integer> indexes = new HashMap<Long, Integer>();
+
+        private final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+
+        private final List<byte[]> segments = new ArrayList<byte[]>();
+
+        private final List<Integer> refs = new ArrayList<Integer>();
+
+        /** records a direct value, its referenced objects are recorded by {@link #recordObjects()} */
+        Fragment recordValue(COSBase value) {
+            return writeValue(value, 0) ? fragment() : null;
+        }
+
+        /** records the referenced objects, including those referenced by recorded objects */
+        List<TemplateObject> recordObjects() throws IOException {
+            for (int i = 0; i < objects.size(); i++) {
+                COSBase source = sources.get(i);
+                if (!writeValue(source, 0)) {
+                    return null;
+                }
+                objects.get(i).body = fragment();
+                if (source instanceof COSStream) {
+                    InputStream in = ((COSStream) source).getFilteredStream();
+                    try {
+                        objects.get(i).data = IOUtils.toByteArray(in);
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            }
+            return objects;
+        }
+
+        private Fragment fragment() {
+            segments.add(segment.toByteArray());
+            segment.reset();
+            byte[][] s = segments.toArray(NO_SEGMENTS);
+            int[] r = NO_REFS;
+            if (!refs.isEmpty()) {
+                r = new int[refs.size()];
+                for (int i = 0; i < r.length; i++) {
+                    r[i] = refs.get(i);
+                }
+            }
+            segments.clear();
+            refs.clear();
+            return new Fragment(s, r);
+        }
+
+        private void write(String s) {
+            byte[] bytes = PDFDocument.encode(s);
+            segment.write(bytes, 0, bytes.length);
+        }
+
+        private boolean writeValue(COSBase value, int depth) {
+            if (depth > MAX_DEPTH) {
+                return false;
+            }
+            if (value instanceof COSObject) {
+                COSObject object = (COSObject) value;
+                if (object.getObject() == null || object.getObject() instanceof COSNull) {
+                    write("null");
+                } else {
+                    writeReference(object);
+                }
+            } else if (value instanceof COSDictionary) {
+                return writeDictionary((COSDictionary) value, depth);
+            } else if (value instanceof COSArray) {
+                write("[");
+                for (COSBase item : (COSArray) value) {
+                    write(" ");
+                    if (!writeValue(item, depth + 1)) {
+                        return false;
+                    }
+                }
+                write(" ]");
+            } else if (value instanceof COSName) {
+                write(new PDFName(((COSName) value).getName()).toString());
+            } else if (value instanceof COSInteger) {
+                write(Long.toString(((COSInteger) value).longValue()));
+            } else if (value instanceof COSFloat) {
+                write(PDFNumber.doubleOut(((COSFloat) value).floatValue()));
+            } else if (value instanceof COSBoolean) {
+                write(String.valueOf(((COSBoolean) value).getValue()));
+            } else if (value instanceof COSString) {
+                write(PDFText.toHex(((COSString) value).getBytes(), true));
+            } else if (value == null || value instanceof COSNull) {
+                write("null");
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean writeDictionary(COSDictionary dict, int depth) {
+            write("<<");
+            for (Map.Entry<COSName, COSBase> e : dict.entrySet()) {
+                //the length of a stream is written with its data
+                if (dict instanceof COSStream && COSName.LENGTH.equals(e.getKey())) {
+                    continue;
+                }
+                write("\n");
+                write(new PDFName(e.getKey().getName()).toString());
+                write(" ");
+                if (!writeValue(e.getValue(), depth + 1)) {
+                    return false;
+                }
+            }
+            write("\n>>");
+            return true;
+        }
+
+        private void writeReference(COSObject object) {
+            Long key = CloneCache.getKey(object);
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = objects.size();
+                indexes.put(key, index);
+                objects.add(new TemplateObject(key));
+                sources.add(object.getObject());
+            }
+            segments.add(segment.toByteArray());
+            segment.reset();
+            refs.add(index);
+        }
+    }
+
+    /** an object of a template in the target document */
+    private static final class RelocatedObject extends PDFDictionary {
+
+        private final TemplateObject object;
+
+        private final PDFObject[] instances;
+
+        private RelocatedObject(TemplateObject object, PDFObject[] instances) {
+            this.object = object;
+            this.instances = instances;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int output(OutputStream stream) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            object.body.write(sb, instances);
+            if (object.data != null) {
+                //insert the length before the end of the dictionary
+                sb.insert(sb.length() - 2, "/Length " + object.data.length + "\n");
+                sb.append("\nstream\n");
+            }
+            byte[] text = PDFDocument.encode(sb.toString());
+            stream.write(text);
+            if (object.data == null) {
+                return text.length;
+            }
+            byte[] end = PDFDocument.encode("\nendstream");
+            stream.write(object.data);
+            stream.write(end);
+            return text.length + object.data.length + end.length;
+        }
+    }
+
+    /** a direct resource of a template in the target document */
+    private static final class RelocatedValue implements PDFWritable {
+
+        private final Fragment value;
+
+        private final PDFObject[] instances;
+
+        private RelocatedValue(Fragment value, PDFObject[] instances) {
+            this.value = value;
+            this.instances = instances;
+        }
+
+        /** {@inheritDoc} */
+        public void outputInline(OutputStream out, StringBuilder textBuffer) throws IOException {
+            value.write(textBuffer, instances);
+        }
+    }
+}
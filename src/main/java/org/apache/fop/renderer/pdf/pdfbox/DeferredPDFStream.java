@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * Clone of a stream of a source PDF whose data is only copied when the stream is written to
+ * the output, straight from the source document. Large images and font programs are thus
+ * never held on the heap a second time. The stream holds a reference to the source document
+ * until it has been written; if its data is modified before, it is copied right away and the
+ * stream behaves like a plain {@link PDFStream}.
+ */
+class DeferredPDFStream extends PDFStream {
+
+    private COSStream source;
+
+    /** true if the source data is to be decoded, false if it is transferred encoded */
+    private final boolean decoded;
+
+    private DocumentHandle handle;
+
+    /**
+     * Creates a deferred stream.
+     * @param source the source stream
+     * @param decoded true to transfer the decoded data, false for the encoded data
+     * @param handle the source document, the caller passes a reference it holds to the stream
+     */
+    DeferredPDFStream(COSStream source, boolean decoded, DocumentHandle handle) {
+        this.source = source;
+        this.decoded = decoded;
+        this.handle = handle;
+    }
+
+    /** @return true if the data has not been copied from the source yet */
+    boolean isDeferred() {
+        return source != null;
+    }
+
+    /** releases the source document of a stream which is not going to be written */
+    void discard() {
+        releaseSource();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(String s) {
+        materializeUnchecked();
+        super.add(s);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(StringBuffer sb) {
+        materializeUnchecked();
+        super.add(sb);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Writer getBufferWriter() {
+        materializeUnchecked();
+        return super.getBufferWriter();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public OutputStream getBufferOutputStream() throws IOException {
+        materialize();
+        return super.getBufferOutputStream();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setData(byte[] data) throws IOException {
+        //the source data is replaced, no need to copy it
+        releaseSource();
+        super.setData(data);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getDataLength() {
+        if (isDeferred() && !decoded) {
+            return source.getInt(COSName.LENGTH, 0);
+        }
+        materializeUnchecked();
+        return super.getDataLength();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected int getSizeHint() throws IOException {
+        if (isDeferred()) {
+            return decoded ? 0 : source.getInt(COSName.LENGTH, 0);
+        }
+        return super.getSizeHint();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void outputRawStreamData(OutputStream out) throws IOException {
+        if (!isDeferred()) {
+            super.outputRawStreamData(out);
+            return;
+        }
+        try {
+            copySource(out);
+        } finally {
+            releaseSource();
+        }
+    }
+
+    /** copies the source data into the buffer of this stream */
+    private void materialize() throws IOException {
+        if (isDeferred()) {
+            try {
+                copySource(super.getBufferOutputStream());
+            } finally {
+                releaseSource();
+            }
+        }
+    }
+
+    private void materializeUnchecked() {
+        try {
+            materialize();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Cannot read PDF stream data: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private void copySource(OutputStream out) throws IOException {
+        //the source document may be used by other threads
+        handle.getLock().lock();
+        try {
+            InputStream in = decoded ? source.getUnfilteredStream() : source.getFilteredStream();
+            try {
+                IOUtils.copyLarge(in, out);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        } finally {
+            handle.getLock().unlock();
+        }
+    }
+
+    private void releaseSource() {
+        if (isDeferred()) {
+            source = null;
+            handle.release();
+            handle = null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Locale;
+
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+
+import org.apache.xmlgraphics.image.loader.ImageContext;
+
+/**
+ * Policy of the cache in which the preloader keeps the PDF documents of an image context
+ * (usually a <code>FopFactory</code>). Unless a policy is set with {@link #applyTo(ImageContext)},
+ * the {@link #getDefault() default policy} given by the <code>fop.pdfbox.preloader-cache</code>
+ * system properties is used.
+ * <p>
+ * The policy can also be read from a configuration element, e.g. in the FOP configuration
+ * file, with {@link #configure(Configuration)}:
+ * <pre>
+ * &lt;pdf-images&gt;
+ *   &lt;document-cache type="lru" max-entries="64" max-bytes="536870912" ttl="600000" shared="true"/&gt;
+ * &lt;/pdf-images&gt;
+ * </pre>
+ */
+public final class DocumentCachePolicy {
+
+    /** Kind of document cache. */
+    public enum Type {
+        /** keeps the last document only, as long as it is referenced elsewhere */
+        WEAK,
+        /** keeps documents until memory runs low */
+        SOFT,
+        /** keeps all documents */
+        STRONG,
+        /** keeps the most recently used documents, bounded by count and estimated size */
+        LRU;
+    }
+
+    private static final DocumentCachePolicy DEFAULT = new DocumentCachePolicy(
+            Type.valueOf(System.getProperty("fop.pdfbox.preloader-cache", Type.WEAK.name())
+                    .toUpperCase(Locale.ENGLISH)),
+            Integer.getInteger("fop.pdfbox.preloader-cache.max-entries", Cache.DEFAULT_MAX_ENTRIES),
+            Long.getLong("fop.pdfbox.preloader-cache.max-bytes", Cache.DEFAULT_MAX_BYTES),
+            Long.getLong("fop.pdfbox.preloader-cache.ttl", -1),
+            Boolean.getBoolean("fop.pdfbox.preloader-cache.shared"));
+
+    private final Type type;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final long timeToLive;
+
+    private final boolean shared;
+
+    /**
+     * Creates a cache policy.
+     * @param type the kind of cache
+     * @param maxEntries the maximum number of documents kept by an LRU cache
+     * @param maxBytes the maximum number of estimated bytes kept by an LRU cache
+     * @param timeToLive the time in milliseconds after which a cached document is loaded
+     *          again, -1 for no limit
+     * @param shared true if the cache is shared by all image contexts with an equal policy
+     */
+    public DocumentCachePolicy(Type type, int maxEntries, long maxBytes, long timeToLive, boolean shared) {
+        if (type == null) {
+            throw new NullPointerException("type must not be null");
+        }
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("The limits of the LRU cache must be positive");
+        }
+        this.type = type;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive < 0 ? -1 : timeToLive;
+        this.shared = shared;
+    }
+
+    /**
+     * Returns the policy given by the <code>fop.pdfbox.preloader-cache</code> system properties,
+     * read once when this class is initialized.
+     * @return the default policy
+     */
+    public static DocumentCachePolicy getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the policy of the document cache of an image context.
+     * @param context the image context
+     * @return the policy in effect
+     */
+    public static DocumentCachePolicy getPolicy(ImageContext context) {
+        return PreloaderPDF.getCachePolicy(context);
+    }
+
+    /**
+     * Makes this the policy of the document cache of an image context. The documents cached
+     * so far for the context are dropped, unless its cache is shared with other contexts.
+     * Documents still used by images stay open until they are no longer used.
+     * @param context the image context
+     */
+    public void applyTo(ImageContext context) {
+        PreloaderPDF.setCachePolicy(context, this);
+    }
+
+    /**
+     * Creates a policy from the <code>document-cache</code> child of the given configuration
+     * element. Missing attributes are taken from the default policy.
+     * @param cfg the configuration element
+     * @return the policy, the default policy if there is no <code>document-cache</code> child
+     * @throws ConfigurationException if an attribute is invalid
+     */
+    public static DocumentCachePolicy configure(Configuration cfg) throws ConfigurationException {
+        Configuration child = cfg.getChild("document-cache", false);
+        if (child == null) {
+            return DEFAULT;
+        }
+        String typeName = child.getAttribute("type", DEFAULT.type.name());
+        Type type;
+        try {
+            type = Type.valueOf(typeName.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid document cache type: " + typeName, child, e);
+        }
+        try {
+            return new DocumentCachePolicy(type,
+                    child.getAttributeAsInteger("max-entries", DEFAULT.maxEntries),
+                    child.getAttributeAsLong("max-bytes", DEFAULT.maxBytes),
+                    child.getAttributeAsLong("ttl", DEFAULT.timeToLive),
+                    child.getAttributeAsBoolean("shared", DEFAULT.shared));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage(), child, e);
+        }
+    }
+
+    /** @return the kind of cache */
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the maximum number of documents kept by an LRU cache */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** @return the maximum number of estimated bytes kept by an LRU cache */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** @return the time in milliseconds after which a cached document is loaded again, -1 for no limit */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /** @return true if the cache is shared by all image contexts with an equal policy */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof DocumentCachePolicy)) {
+            return false;
+        }
+        DocumentCachePolicy other = (DocumentCachePolicy) obj;
+        return type == other.type && maxEntries == other.maxEntries && maxBytes == other.maxBytes
+                && timeToLive == other.timeToLive && shared == other.shared;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        int hash = type.hashCode();
+        hash = 31 * hash + maxEntries;
+        hash = 31 * hash + (int) (maxBytes ^ (maxBytes >>> 32));
+        hash = 31 * hash + (int) (timeToLive ^ (timeToLive >>> 32));
+        return 31 * hash + (shared ? 1 : 0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "DocumentCachePolicy[type=" + type + ", maxEntries=" + maxEntries + ", maxBytes=" + maxBytes
+                + ", ttl=" + timeToLive + ", shared=" + shared + "]";
+    }
+}
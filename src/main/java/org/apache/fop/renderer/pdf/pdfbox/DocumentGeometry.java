@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The page geometry of all pages of a PDF document.
+ */
+public final class DocumentGeometry {
+
+    private final List<PageGeometry> pages;
+
+    /**
+     * Creates a new document geometry.
+     * @param pages the geometry of each page, in page order
+     */
+    public DocumentGeometry(List<PageGeometry> pages) {
+        this.pages = Collections.unmodifiableList(new ArrayList<PageGeometry>(pages));
+    }
+
+    /** @return the number of pages */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Returns the geometry of a page.
+     * @param pageIndex the zero-based page index
+     * @return the page geometry
+     */
+    public PageGeometry getPage(int pageIndex) {
+        return pages.get(pageIndex);
+    }
+}
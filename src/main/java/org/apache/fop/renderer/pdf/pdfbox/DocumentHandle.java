@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Reference-counted holder of a {@link PDDocument}. Every party using the document (the
+ * document cache, each {@link ImagePDF} and each placement of a page) holds a reference and
+ * the document is closed as soon as the last reference is released.
+ * <p>
+ * A reference can also be tied to an owner, such as an image or a rendering session (see
+ * {@link #retainFor(Object)}). It is released explicitly when the owner is done with the
+ * document or, as a backstop, once the owner has been garbage collected. The same backstop
+ * applies to the handle itself, so a document is never left open because a reference was
+ * forgotten.
+ */
+public final class DocumentHandle implements Closeable {
+
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(DocumentHandle.class);
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    /** keeps the pending owner references reachable until they are enqueued */
+    private static final Set<Reference<?>> OWNERS = Collections.synchronizedSet(new HashSet<Reference<?>>());
+
+    private final PDDocument document;
+
+    private final long size;
+
+    private final String digest;
+
+    /** released together with the document, e.g. its share of the scratch memory budget */
+    private final Closeable resource;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /** PDFBox documents are not thread-safe, this serializes their users */
+    private final Lock lock = new ReentrantLock();
+
+    /** decoded page contents prefetched in the background, by page index */
+    private final ConcurrentMap<Integer, FutureTask<byte[]>> prefetchedContents
+            = new ConcurrentHashMap<Integer, FutureTask<byte[]>>();
+
+    /** relocatable forms of the pages imported from the document */
+    private final ConcurrentMap<Object, CloneTemplate> cloneTemplates = new ConcurrentHashMap<Object, CloneTemplate>();
+
+    private final AtomicLong cloneTemplateBytes = new AtomicLong();
+
+    /**
+     * Creates a handle for a document. The caller holds the first reference.
+     * @param document the document
+     * @param size the estimated size of the document in bytes (0 if unknown)
+     */
+    public DocumentHandle(PDDocument document, long size) {
+        this(document, size, null);
+    }
+
+    /**
+     * Creates a handle for a document whose content digest is known. The caller holds the
+     * first reference.
+     * @param document the document
+     * @param size the estimated size of the document in bytes (0 if unknown)
+     * @param digest the SHA-1 digest of the document's bytes as a hexadecimal string (may be null)
+     */
+    public DocumentHandle(PDDocument document, long size, String digest) {
+        this(document, size, digest, null);
+    }
+
+    /**
+     * Creates a handle for a document with an additional resource which is closed right after
+     * the document. The caller holds the first reference.
+     * @param document the document
+     * @param size the estimated size of the document in bytes (0 if unknown)
+     * @param digest the SHA-1 digest of the document's bytes as a hexadecimal string (may be null)
+     * @param resource the resource to close with the document (may be null)
+     */
+    DocumentHandle(PDDocument document, long size, String digest, Closeable resource) {
+        expungeStaleReferences();
+        this.document = document;
+        this.size = size;
+        this.digest = digest;
+        this.resource = resource;
+        //close the document if the handle becomes unreachable before the last reference is released
+        OWNERS.add(new DocumentReference(this, document, resource));
+    }
+
+    /**
+     * Returns the document. Callers must hold a reference while using it.
+     * @return the document
+     */
+    public PDDocument getDocument() {
+        return document;
+    }
+
+    /** @return the estimated size of the document in bytes (0 if unknown) */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the digest of the document's bytes. Documents with the same digest have the same
+     * content, whatever URI they have been loaded from.
+     * @return the SHA-1 digest as a hexadecimal string or null if it is not known
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns the lock which must be held while the document is accessed by code which may run
+     * concurrently with other users of the same document, such as page placement and prefetching.
+     * @return the lock
+     */
+    public Lock getLock() {
+        return lock;
+    }
+
+    /**
+     * Returns the decoded contents of a page if they have been prefetched, waiting for the
+     * prefetch to complete if necessary. The contents are handed out only once. The caller must
+     * not hold the {@link #getLock() lock} since the prefetch needs it.
+     * @param pageIndex the page index
+     * @return the decoded page contents or null if they have not been prefetched
+     * @throws IOException if decoding the contents failed
+     */
+    byte[] takePageContents(int pageIndex) throws IOException {
+        FutureTask<byte[]> task = prefetchedContents.remove(pageIndex);
+        if (task == null) {
+            return null;
+        }
+        //a prefetch which has not started yet is run right here
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            //let the caller decode the contents itself
+            return null;
+        }
+    }
+
+    /** @return the decoded page contents being prefetched or waiting to be taken */
+    ConcurrentMap<Integer, FutureTask<byte[]>> getPrefetchedContents() {
+        return prefetchedContents;
+    }
+
+    /**
+     * Returns the template of an imported page.
+     * @param key the key of the template, see {@link CloneTemplate#getKey}
+     * @return the template or null if the page has not been recorded
+     */
+    CloneTemplate getCloneTemplate(Object key) {
+        return cloneTemplates.get(key);
+    }
+
+    /**
+     * Keeps the template of an imported page, unless the templates of the document would then
+     * exceed {@link CloneTemplate#MAX_BYTES}.
+     * @param key the key of the template, see {@link CloneTemplate#getKey}
+     * @param template the template
+     */
+    void putCloneTemplate(Object key, CloneTemplate template) {
+        if (cloneTemplateBytes.addAndGet(template.getSize()) > CloneTemplate.MAX_BYTES
+                || cloneTemplates.putIfAbsent(key, template) != null) {
+            cloneTemplateBytes.addAndGet(-template.getSize());
+        }
+    }
+
+    /**
+     * Acquires an additional reference unless the document has already been closed.
+     * @return true if a reference has been acquired, false if the document is closed
+     */
+    public boolean tryRetain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquires an additional reference. The caller must already hold one.
+     * @throws IllegalStateException if the document has already been closed
+     */
+    public void retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("PDF document has already been closed");
+        }
+    }
+
+    /**
+     * Acquires an additional reference for an owner. The reference is released when the
+     * returned object is closed or else once the owner has been garbage collected. The caller
+     * must already hold a reference.
+     * @param owner the object holding the reference
+     * @return releases the reference when closed, closing it again has no effect
+     */
+    public Closeable retainFor(Object owner) {
+        expungeStaleReferences();
+        retain();
+        OwnerReference ref = new OwnerReference(owner, this);
+        OWNERS.add(ref);
+        return ref;
+    }
+
+    /**
+     * Releases a reference. The document is closed when the last reference is released.
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count == 0) {
+            prefetchedContents.clear();
+            cloneTemplates.clear();
+            closeDocument(document, resource);
+        } else if (count < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("PDF document reference released too often");
+        }
+    }
+
+    /**
+     * Releases a reference, same as {@link #release()}.
+     */
+    public void close() {
+        release();
+    }
+
+    /** @return true if the document has been closed */
+    public boolean isClosed() {
+        return references.get() <= 0;
+    }
+
+    /**
+     * Releases the references of owners which have been garbage collected. This is done
+     * whenever a handle is created or retained, so no separate thread is needed.
+     */
+    static void expungeStaleReferences() {
+        Reference<?> ref;
+        while ((ref = QUEUE.poll()) != null) {
+            if (!OWNERS.remove(ref)) {
+                //released explicitly in the meantime
+                continue;
+            }
+            if (ref instanceof OwnerReference) {
+                ((OwnerReference) ref).handle.release();
+            } else {
+                DocumentReference docRef = (DocumentReference) ref;
+                if (!docRef.document.getDocument().isClosed()) {
+                    log.debug("Closing PDF document of unreachable handle");
+                    closeDocument(docRef.document, docRef.resource);
+                }
+            }
+        }
+    }
+
+    private static void closeDocument(PDDocument document, Closeable resource) {
+        try {
+            document.close();
+        } catch (IOException ioe) {
+            log.warn("Error while closing PDF document: " + ioe.getMessage());
+        }
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (IOException ioe) {
+                log.warn("Error while releasing PDF document resources: " + ioe.getMessage());
+            }
+        }
+    }
+
+    private static final class OwnerReference extends PhantomReference<Object> implements Closeable {
+
+        private final DocumentHandle handle;
+
+        private OwnerReference(Object owner, DocumentHandle handle) {
+            super(owner, QUEUE);
+            this.handle = handle;
+        }
+
+        public void close() {
+            if (OWNERS.remove(this)) {
+                clear();
+                handle.release();
+            }
+        }
+    }
+
+    private static final class DocumentReference extends PhantomReference<Object> {
+
+        private final PDDocument document;
+
+        private final Closeable resource;
+
+        private DocumentReference(DocumentHandle handle, PDDocument document, Closeable resource) {
+            super(handle, QUEUE);
+            this.document = document;
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
+
+import org.apache.fop.apps.FOUserAgent;
+
+/**
+ * The PDF documents used by a rendering session, i.e. by the image session context of one
+ * {@link FOUserAgent}. Every PDF image loaded in a session holds a reference to its document
+ * for the session, so the document stays open while the session renders. Ending the session
+ * once the output document is complete releases those references: a document is then only
+ * kept open by the preloader's document cache, according to its policy.
+ * <pre>
+ * FOUserAgent userAgent = fopFactory.newFOUserAgent();
+ * try {
+ *     fopFactory.newFop(MimeConstants.MIME_PDF, userAgent, out) ...
+ * } finally {
+ *     DocumentSession.end(userAgent);
+ * }
+ * </pre>
+ * Sessions which are not ended release their references once their image session context
+ * has been garbage collected.
+ */
+public final class DocumentSession {
+
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(DocumentSession.class);
+
+    private static final Map<ImageSessionContext, DocumentSession> SESSIONS
+            = Collections.synchronizedMap(new WeakHashMap<ImageSessionContext, DocumentSession>());
+
+    /** the references held by the session, by document */
+    private final Map<DocumentHandle, Closeable> references = new IdentityHashMap<DocumentHandle, Closeable>();
+
+    private DocumentSession() { }
+
+    /**
+     * Holds a reference to a document for a session, unless the session holds one already.
+     * The caller must hold a reference.
+     * @param session the image session context
+     * @param handle the document handle
+     */
+    static void hold(ImageSessionContext session, DocumentHandle handle) {
+        DocumentSession documents;
+        synchronized (SESSIONS) {
+            documents = SESSIONS.get(session);
+            if (documents == null) {
+                documents = new DocumentSession();
+                SESSIONS.put(session, documents);
+            }
+        }
+        synchronized (documents.references) {
+            if (!documents.references.containsKey(handle)) {
+                documents.references.put(handle, handle.retainFor(session));
+            }
+        }
+    }
+
+    /**
+     * Ends a rendering session: releases the references to the PDF documents used by it.
+     * Images loaded afterwards load their documents again if they have been closed.
+     * @param session the image session context
+     * @return the number of documents released
+     */
+    public static int end(ImageSessionContext session) {
+        DocumentSession documents = SESSIONS.remove(session);
+        if (documents == null) {
+            return 0;
+        }
+        List<Closeable> released;
+        synchronized (documents.references) {
+            released = new ArrayList<Closeable>(documents.references.values());
+            documents.references.clear();
+        }
+        for (Closeable reference : released) {
+            try {
+                reference.close();
+            } catch (IOException ioe) {
+                log.warn("Error while releasing PDF document: " + ioe.getMessage());
+            }
+        }
+        return released.size();
+    }
+
+    /**
+     * Ends the rendering session of a user agent, see {@link #end(ImageSessionContext)}.
+     * @param userAgent the user agent
+     * @return the number of documents released
+     */
+    public static int end(FOUserAgent userAgent) {
+        return end(userAgent.getImageSessionContext());
+    }
+}
@@ -26,7 +26,6 @@ import java.awt.geom.Rectangle2D;
 import java.io.IOException;
 import java.util.Map;
 
-import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.PDFRenderer;
@@ -34,6 +33,8 @@ import org.apache.pdfbox.rendering.PDFRenderer;
 import org.apache.xmlgraphics.image.loader.Image;
 import org.apache.xmlgraphics.image.loader.ImageException;
 import org.apache.xmlgraphics.image.loader.ImageFlavor;
+import org.apache.xmlgraphics.image.loader.ImageProcessingHints;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
 import org.apache.xmlgraphics.image.loader.impl.AbstractImageConverter;
 import org.apache.xmlgraphics.image.loader.impl.ImageGraphics2D;
 import org.apache.xmlgraphics.image.loader.util.ImageUtil;
@@ -56,11 +57,17 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
         final int selectedPage = ImageUtil.needPageIndexFromURI(
                 src.getInfo().getOriginalURI());
 
-        PDDocument pddoc = imgPDF.getPDDocument();
+        ImageSessionContext session = hints != null
+                ? (ImageSessionContext) hints.get(ImageProcessingHints.IMAGE_SESSION_CONTEXT) : null;
+        Graphics2DImagePainter painter = new Graphics2DImagePainterPDF(imgPDF.getDocumentHandle(), selectedPage,
+                session);
 
-        Graphics2DImagePainter painter = new Graphics2DImagePainterPDF(pddoc, selectedPage);
-
-        ImageGraphics2D g2dImage = new ImageGraphics2D(src.getInfo(), painter);
+        ImageGraphics2D g2dImage = new ImageGraphics2D(src.getInfo(), painter) {
+            /** not kept by FOP's image cache beyond the rendering session holding the document */
+            public boolean isCacheable() {
+                return false;
+            }
+        };
         return g2dImage;
     }
 
@@ -82,19 +89,39 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
 
     private static class Graphics2DImagePainterPDF implements GeneralGraphics2DImagePainter {
 
+        /** the document may be used by other threads at the same time, e.g. prefetching pages */
+        private final DocumentHandle handle;
         private final PDPage page;
-        private final PDDocument pdDocument;
         private int selectedPage;
 
-        public Graphics2DImagePainterPDF(PDDocument pddoc, int selectedPage) {
-            pdDocument = pddoc;
+        public Graphics2DImagePainterPDF(DocumentHandle handle, int selectedPage, ImageSessionContext session) {
+            //the painter may outlive the image, so it keeps the document open on its own
+            if (session != null) {
+                //released with the other documents of the rendering session
+                DocumentSession.hold(session, handle);
+            } else {
+                //no session to tie the reference to: released once the painter has been collected
+                handle.retainFor(this);
+            }
+            this.handle = handle;
             this.selectedPage = selectedPage;
-            page = pdDocument.getPage(selectedPage);
+            handle.getLock().lock();
+            try {
+                page = handle.getDocument().getPage(selectedPage);
+            } finally {
+                handle.getLock().unlock();
+            }
         }
 
         /** {@inheritDoc} */
         public Dimension getImageSize() {
-            PDRectangle mediaBox = page.getMediaBox();
+            PDRectangle mediaBox;
+            handle.getLock().lock();
+            try {
+                mediaBox = page.getMediaBox();
+            } finally {
+                handle.getLock().unlock();
+            }
             int wmpt = (int)Math.ceil(mediaBox.getWidth() * 1000);
             int hmpt = (int)Math.ceil(mediaBox.getHeight() * 1000);
             return new Dimension(wmpt, hmpt);
@@ -102,6 +129,7 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
 
         /** {@inheritDoc} */
         public void paint(Graphics2D g2d, Rectangle2D area) {
+            handle.getLock().lock();
             try {
                 PDRectangle mediaBox = page.getCropBox();
                 AffineTransform at = new AffineTransform();
@@ -113,10 +141,12 @@ public class ImageConverterPDF2G2D extends AbstractImageConverter {
                 at.scale(area.getWidth() / mediaBox.getWidth(),
                         area.getHeight() / mediaBox.getHeight());
                 g2d.transform(at);
-                new PDFRenderer(pdDocument).renderPageToGraphics(selectedPage, g2d);
+                new PDFRenderer(handle.getDocument()).renderPageToGraphics(selectedPage, g2d);
             } catch (IOException ioe) {
                 //TODO Better exception handling
                 throw new RuntimeException("I/O error while painting PDF page", ioe);
+            } finally {
+                handle.getLock().unlock();
             }
         }
 
@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.contentstream.PDFGraphicsStreamEngine;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImage;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import org.apache.fop.pdf.DCTFilter;
+import org.apache.fop.pdf.FlateFilter;
+import org.apache.fop.pdf.PDFName;
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * Downsamples the images of an imported page whose resolution at the size they are placed at
+ * exceeds a target resolution, such as scans placed as thumbnails. The placement of every
+ * image is found by running the page content through PDFBox's graphics engine, which tracks
+ * the current transformation matrix into form XObjects. Only images drawn from the content
+ * stream are considered, images used otherwise (in patterns, soft masks or annotations) keep
+ * their resolution. Enabled with the system property <code>fop.pdfbox.downsample-dpi</code>
+ * (see {@link PDFBoxAdapter#setDownsampleResolution(int)});
+ * <code>fop.pdfbox.downsample-quality</code> sets the JPEG quality (default: 0.8).
+ * <p>
+ * Only plain 8 bit gray and RGB images (also ICC based) without masks or decode arrays, which
+ * are stored uncompressed, Flate or DCT encoded, are downsampled. DCT encoded images stay
+ * JPEGs, the others are Flate encoded. As re-encoding a JPEG loses quality, images are only
+ * downsampled if their resolution exceeds the target by more than half of it.
+ */
+final class ImageDownsampler {
+
+    private static final Log log = LogFactory.getLog(ImageDownsampler.class);
+
+    /** the default of {@link PDFBoxAdapter#setDownsampleResolution(int)} */
+    static final int RESOLUTION = Integer.getInteger("fop.pdfbox.downsample-dpi", 0);
+
+    private static final float QUALITY = Float.parseFloat(System.getProperty("fop.pdfbox.downsample-quality", "0.8"));
+
+    /** the factor by which the resolution of an image must exceed the target to be downsampled */
+    private static final double THRESHOLD = 1.5;
+
+    /** zlib's default compression level */
+    private static final int DEFAULT_LEVEL = 6;
+
+    /** the entries which the downsampled image replaces */
+    static final Set<String> REPLACED_ENTRIES = new HashSet<String>(Arrays.asList(new String[] {"Filter",
+        "DecodeParms", "Width", "Height", "BitsPerComponent", "ColorSpace"}));
+
+    private ImageDownsampler() { }
+
+    /**
+     * Finds the images of a page to be downsampled.
+     * @param page the page
+     * @param pos the area the page is placed in, in millipoints
+     * @param resolution the target resolution in dpi
+     * @return the sizes to downsample the images to, by image
+     */
+    static Map<COSStream, int[]> getSizes(PDPage page, Rectangle pos, int resolution) {
+        Map<COSStream, int[]> sizes = new IdentityHashMap<COSStream, int[]>();
+        PDRectangle viewBox = page.getCropBox() != null ? page.getCropBox() : page.getMediaBox();
+        double w = pos.getWidth() / 1000;
+        double h = pos.getHeight() / 1000;
+        int rotation = PDFUtil.getNormalizedRotation(page);
+        if (rotation == 90 || rotation == 270) {
+            double tmp = w;
+            w = h;
+            h = tmp;
+        }
+        //the page may be stretched, the larger scale decides
+        double scale = Math.max(w / viewBox.getWidth(), h / viewBox.getHeight());
+        if (!(scale > 0)) {
+            return sizes;
+        }
+        PlacementCollector collector = new PlacementCollector(page, scale * resolution / 72);
+        try {
+            collector.processPage(page);
+        } catch (IOException e) {
+            log.warn("Cannot determine the resolution of the images of a page, they are not downsampled: "
+                    + e.getMessage());
+            return sizes;
+        }
+        for (Map.Entry<COSStream, double[]> e : collector.required.entrySet()) {
+            COSStream image = e.getKey();
+            int width = image.getInt(COSName.WIDTH);
+            int height = image.getInt(COSName.HEIGHT);
+            double factor = Math.max(e.getValue()[0] / width, e.getValue()[1] / height);
+            if (factor * THRESHOLD < 1) {
+                sizes.put(image, new int[] {Math.max(1, (int) Math.ceil(width * factor)),
+                        Math.max(1, (int) Math.ceil(height * factor))});
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Checks whether an image can be downsampled.
+     * @param image the image XObject
+     * @return true if the image can be downsampled
+     */
+    static boolean isSupported(COSStream image) {
+        if (!COSName.IMAGE.equals(image.getCOSName(COSName.SUBTYPE))
+                || image.getInt(COSName.WIDTH) <= 0 || image.getInt(COSName.HEIGHT) <= 0
+                || image.getInt(COSName.BITS_PER_COMPONENT) != 8 || image.getBoolean(COSName.IMAGE_MASK, false)
+                || image.containsKey(COSName.MASK) || image.containsKey(COSName.SMASK)
+                || image.containsKey(COSName.DECODE)) {
+            return false;
+        }
+        COSName filter = getFilter(image);
+        if (COSName.DCT_DECODE.equals(filter)) {
+            if (image.getDictionaryObject(COSName.DECODE_PARMS) != null) {
+                return false;
+            }
+        } else if (filter != null ? !COSName.FLATE_DECODE.equals(filter)
+                : image.getDictionaryObject(COSName.FILTER) != null) {
+            return false;
+        }
+        return getComponents(image) > 0;
+    }
+
+    /** @return the only filter of an image, null if it has none or more than one */
+    private static COSName getFilter(COSStream image) {
+        COSBase filter = image.getDictionaryObject(COSName.FILTER);
+        if (filter instanceof COSArray && ((COSArray) filter).size() == 1) {
+            filter = ((COSArray) filter).getObject(0);
+        }
+        return filter instanceof COSName ? (COSName) filter : null;
+    }
+
+    /** @return the number of color components of a gray or RGB image, 0 for other images */
+    private static int getComponents(COSStream image) {
+        COSBase cs = image.getDictionaryObject(COSName.COLORSPACE);
+        if (COSName.DEVICEGRAY.equals(cs)) {
+            return 1;
+        } else if (COSName.DEVICERGB.equals(cs)) {
+            return 3;
+        } else if (cs instanceof COSArray && ((COSArray) cs).size() == 2
+                && COSName.ICCBASED.equals(((COSArray) cs).getObject(0))
+                && ((COSArray) cs).getObject(1) instanceof COSStream) {
+            int n = ((COSStream) ((COSArray) cs).getObject(1)).getInt(COSName.N);
+            return n == 1 || n == 3 ? n : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Tracks the transformation matrix through the page content and records the resolution
+     * needed for every image drawn. Text is not shown, images in Type 3 glyphs are thus not
+     * found.
+     */
+    private static final class PlacementCollector extends PDFGraphicsStreamEngine {
+
+        /** the target resolution in pixels per unit of the page's user space */
+        private final double resolution;
+
+        /** the number of pixels needed horizontally and vertically, by image */
+        private final Map<COSStream, double[]> required = new IdentityHashMap<COSStream, double[]>();
+
+        private final Map<COSStream, Boolean> unsupported = new IdentityHashMap<COSStream, Boolean>();
+
+        private PlacementCollector(PDPage page, double resolution) {
+            super(page);
+            this.resolution = resolution;
+        }
+
+        public void drawImage(PDImage pdImage) throws IOException {
+            if (!(pdImage instanceof PDImageXObject)) {
+                return;
+            }
+            COSStream image = ((PDImageXObject) pdImage).getCOSStream();
+            if (unsupported.containsKey(image)) {
+                return;
+            }
+            if (!required.containsKey(image) && !isSupported(image)) {
+                unsupported.put(image, Boolean.TRUE);
+                return;
+            }
+            //the image is drawn into the unit square, its edges end up as long as the matrix columns
+            Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+            double width = Math.hypot(ctm.getScaleX(), ctm.getShearY()) * resolution;
+            double height = Math.hypot(ctm.getShearX(), ctm.getScaleY()) * resolution;
+            double[] size = required.get(image);
+            if (size == null) {
+                required.put(image, new double[] {width, height});
+            } else {
+                size[0] = Math.max(size[0], width);
+                size[1] = Math.max(size[1], height);
+            }
+        }
+
+        protected void showText(byte[] string) throws IOException {
+            //the text does not affect the placement of images
+        }
+
+        public void appendRectangle(Point2D p0, Point2D p1, Point2D p2, Point2D p3) {
+        }
+
+        public void clip(int windingRule) {
+        }
+
+        public void moveTo(float x, float y) {
+        }
+
+        public void lineTo(float x, float y) {
+        }
+
+        public void curveTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+        }
+
+        public Point2D getCurrentPoint() {
+            return new Point2D.Float();
+        }
+
+        public void closePath() {
+        }
+
+        public void endPath() {
+        }
+
+        public void strokePath() {
+        }
+
+        public void fillPath(int windingRule) {
+        }
+
+        public void fillAndStrokePath(int windingRule) {
+        }
+
+        public void shadingFill(COSName shadingName) {
+        }
+    }
+
+    /**
+     * The downsampled clone of an image. Its dictionary describes the downsampled data, the
+     * other entries of the source image are cloned as usual.
+     */
+    static final class DownsampledImage extends PDFStream {
+
+        private final COSStream source;
+
+        private final int width;
+
+        private final int height;
+
+        private final int components;
+
+        private final boolean jpeg;
+
+        private final int level;
+
+        /**
+         * Creates the clone of an image.
+         * @param source the source image
+         * @param width the width to downsample the image to
+         * @param height the height to downsample the image to
+         * @param level the Flate compression level for images which are not DCT encoded, -1
+         *          for the default
+         */
+        DownsampledImage(COSStream source, int width, int height, int level) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.components = getComponents(source);
+            this.jpeg = COSName.DCT_DECODE.equals(getFilter(source));
+            this.level = level < 0 ? DEFAULT_LEVEL : level;
+            put("Width", width);
+            put("Height", height);
+            put("BitsPerComponent", 8);
+            put("ColorSpace", new PDFName(components == 1 ? "DeviceGray" : "DeviceRGB"));
+            if (jpeg) {
+                getFilterList().addFilter(new DCTFilter());
+            } else {
+                //the data is encoded already, FOP only adds the filter entry (and encrypts the data)
+                FlateFilter flate = new FlateFilter();
+                flate.setApplied(true);
+                getFilterList().addFilter(flate);
+            }
+        }
+
+        /**
+         * Checks whether this clone has enough pixels for a placement of the image.
+         * @param size the size needed, null for the size of the source image
+         * @return true if the clone can be used
+         */
+        boolean isSufficient(int[] size) {
+            return size != null && size[0] <= width && size[1] <= height;
+        }
+
+        /**
+         * Decodes, downsamples and encodes the image.
+         * @throws IOException if the image cannot be read
+         */
+        void downsample() throws IOException {
+            BufferedImage image = scale(read());
+            OutputStream out = getBufferOutputStream();
+            if (jpeg) {
+                writeJPEG(image, out);
+            } else {
+                byte[] samples = new byte[width * height * components];
+                int i = 0;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (components == 1) {
+                            //getRGB() would convert from the linear gray color space
+                            samples[i++] = (byte) image.getRaster().getSample(x, y, 0);
+                        } else {
+                            int rgb = image.getRGB(x, y);
+                            samples[i++] = (byte) (rgb >> 16);
+                            samples[i++] = (byte) (rgb >> 8);
+                            samples[i++] = (byte) rgb;
+                        }
+                    }
+                }
+                StreamFetcher.copy(new ByteArrayInputStream(samples), out, level);
+            }
+        }
+
+        private BufferedImage read() throws IOException {
+            if (jpeg && !(source.getDictionaryObject(COSName.COLORSPACE) instanceof COSArray)) {
+                //decode a JPEG with device colors subsampled rather than in full
+                int step = Math.max(1, Math.min(source.getInt(COSName.WIDTH) / width,
+                        source.getInt(COSName.HEIGHT) / height));
+                BufferedImage image = readJPEG(step);
+                if (image != null) {
+                    return image;
+                }
+            }
+            return new PDImageXObject(new PDStream(source), null).getImage();
+        }
+
+        /** @return the image or null if ImageIO cannot read it */
+        private BufferedImage readJPEG(int step) throws IOException {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            InputStream in = source.getFilteredStream();
+            ImageInputStream iis = new MemoryCacheImageInputStream(in);
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } catch (IOException e) {
+                log.debug("ImageIO cannot read the JPEG, decoding it with PDFBox", e);
+                return null;
+            } finally {
+                reader.dispose();
+                iis.close();
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        /** scales an image in steps of at most one half, so bilinear filtering takes all pixels into account */
+        private BufferedImage scale(BufferedImage image) {
+            int type = components == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+            int w = image.getWidth();
+            int h = image.getHeight();
+            do {
+                w = Math.max(width, w / 2);
+                h = Math.max(height, h / 2);
+                BufferedImage scaled = new BufferedImage(w, h, type);
+                Graphics2D g2d = scaled.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(image, 0, 0, w, h, null);
+                g2d.dispose();
+                image = scaled;
+            } while (w != width || h != height);
+            return image;
+        }
+
+        private void writeJPEG(BufferedImage image, OutputStream out) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+            try {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(QUALITY);
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+                ios.close();
+            }
+        }
+    }
+}
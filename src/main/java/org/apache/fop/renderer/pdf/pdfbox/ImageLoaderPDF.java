@@ -59,11 +59,31 @@ public class ImageLoaderPDF extends AbstractImageLoader {
             throw new IllegalArgumentException("ImageInfo must be from a PDF document");
         }
         Image img = info.getOriginalImage();
-        if (!(img instanceof ImagePDF)) {
-            throw new IllegalArgumentException(
-                    "ImageInfo was expected to contain the PDF document");
+        ImagePDF pdfImage = null;
+        if (img != null) {
+            if (!(img instanceof ImagePDF)) {
+                throw new IllegalArgumentException(
+                        "ImageInfo was expected to contain the PDF document");
+            }
+            pdfImage = (ImagePDF)img;
+            if (!pdfImage.getDocumentHandle().tryRetain()) {
+                //the sessions which used the document have ended and it has been evicted
+                pdfImage = null;
+            }
+        }
+        if (pdfImage == null) {
+            //preloaded from the page geometry only or the document has been closed since
+            pdfImage = PreloaderPDF.loadImage(info, session);
+            pdfImage.getDocumentHandle().retain();
+        }
+        DocumentHandle handle = pdfImage.getDocumentHandle();
+        try {
+            //from now on the session keeps the document open, not the image
+            DocumentSession.hold(session, handle);
+            pdfImage.releaseDocument();
+        } finally {
+            handle.release();
         }
-        ImagePDF pdfImage = (ImagePDF)img;
         return pdfImage;
     }
 
@@ -19,6 +19,7 @@
 
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -38,17 +39,37 @@ public class ImagePDF extends AbstractImage {
     /** ImageFlavor for PDF */
     public static final ImageFlavor PDFBOX_IMAGE = new ImageFlavor("PDFBox");
 
-    private final PDDocument pddoc;
+    private final DocumentHandle handle;
+
+    /** the reference held by the image itself, see {@link #releaseDocument()} */
+    private final Closeable reference;
 
     /**
-     * Create an PDF image with the image information.
+     * Create an PDF image with the image information. The image takes over the document
+     * and closes it once the image has been garbage collected.
      *
      * @param info the information containing the data and bounding box
      * @param doc the PDF document
      */
     public ImagePDF(ImageInfo info, PDDocument doc) {
         super(info);
-        this.pddoc = doc;
+        this.handle = new DocumentHandle(doc, 0);
+        this.reference = handle.retainFor(this);
+        handle.release();
+    }
+
+    /**
+     * Create an PDF image with the image information. The image holds a reference to the
+     * document until it is loaded into a rendering session (see {@link DocumentSession}) or
+     * else until it has been garbage collected.
+     *
+     * @param info the information containing the data and bounding box
+     * @param handle the handle of the PDF document, the caller must hold a reference to it
+     */
+    public ImagePDF(ImageInfo info, DocumentHandle handle) {
+        super(info);
+        this.handle = handle;
+        this.reference = handle.retainFor(this);
     }
 
     /**
@@ -56,28 +77,43 @@ public class ImagePDF extends AbstractImage {
      * @return the root PDDocument
      */
     public PDDocument getPDDocument() {
-        return this.pddoc;
+        return handle.getDocument();
     }
 
-    /** {@inheritDoc} */
-    public ImageFlavor getFlavor() {
-        return PDFBOX_IMAGE;
+    /**
+     * Returns the reference-counted handle of the PDF document. Code using the document
+     * beyond the lifetime of this image must retain its own reference.
+     * @return the document handle
+     */
+    public DocumentHandle getDocumentHandle() {
+        return handle;
     }
 
     /** {@inheritDoc} */
-    public boolean isCacheable() {
-        return true;
+    public ImageFlavor getFlavor() {
+        return PDFBOX_IMAGE;
     }
 
-    /** {@inheritDoc} */
-    @Override
-    protected void finalize() throws Throwable {
+    /**
+     * Releases the reference the image holds itself, e.g. once a rendering session holds
+     * one. Releasing it again has no effect.
+     */
+    void releaseDocument() {
         try {
-            this.pddoc.close();
+            reference.close();
         } catch (IOException ioe) {
-            //ignore
+            //not thrown by document references
+            throw new IllegalStateException(ioe);
         }
-        super.finalize();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The image is not cached by FOP's image cache but kept by the image information, so
+     * {@link ImageLoaderPDF} can check whether its document is still open whenever it is used.
+     */
+    public boolean isCacheable() {
+        return false;
     }
 
 }
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * What the import of one page of a PDF image added to the target document: the objects cloned
+ * and the bytes of their stream data by category, the objects reused from the object cache and
+ * the time spent. The bytes are those of the stream data in the source PDF (the imported
+ * content for {@link Category#CONTENT}), which is what is transferred unless the data has to be
+ * decoded or is downsampled. Objects found in the object cache or shared with identical streams
+ * are not counted as cloned, and neither are the resources of pages imported through a clone
+ * template.
+ * <p>
+ * The statistics are only collected while a listener is registered, see
+ * {@link #addListener(ImportListener)}. An instance is not thread-safe.
+ */
+public class ImportStatistics {
+
+    /** the kinds of objects cloned */
+    public enum Category {
+        /** the content stream of the page */
+        CONTENT,
+        /** image XObjects */
+        IMAGE,
+        /** form XObjects */
+        FORM,
+        /** font dictionaries, descriptors and programs */
+        FONT,
+        /** ICC profiles */
+        ICC,
+        /** annotations with their appearances, and form fields */
+        ANNOTATION,
+        /** the logical structure */
+        STRUCTURE,
+        /** everything else, e.g. graphics states, patterns and shadings */
+        OTHER;
+    }
+
+    private static final CopyOnWriteArrayList<ImportListener> LISTENERS
+            = new CopyOnWriteArrayList<ImportListener>();
+
+    private final String source;
+
+    private final int pageIndex;
+
+    private final long start = System.nanoTime();
+
+    private final long[] objects = new long[Category.values().length];
+
+    private final long[] bytes = new long[Category.values().length];
+
+    private long cacheHits;
+
+    private long nanos = -1;
+
+    /**
+     * Creates the statistics of an import, which starts now.
+     * @param source the URI of the PDF
+     * @param pageIndex the index of the imported page
+     */
+    public ImportStatistics(String source, int pageIndex) {
+        this.source = source;
+        this.pageIndex = pageIndex;
+    }
+
+    /**
+     * Adds a listener which is notified of all imports.
+     * @param listener the listener
+     */
+    public static void addListener(ImportListener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener the listener
+     */
+    public static void removeListener(ImportListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /** @return true if any listener is registered, statistics need not be collected otherwise */
+    static boolean hasListeners() {
+        return !LISTENERS.isEmpty();
+    }
+
+    /**
+     * Records a cloned object.
+     * @param category the category of the object
+     * @param length the length of its stream data, 0 if it is no stream
+     */
+    void addObject(Category category, long length) {
+        objects[category.ordinal()]++;
+        bytes[category.ordinal()] += length;
+    }
+
+    /** records an object reused from the object cache */
+    void addCacheHit() {
+        cacheHits++;
+    }
+
+    /**
+     * Ends the import and notifies the listeners.
+     */
+    public void finish() {
+        nanos = System.nanoTime() - start;
+        for (ImportListener listener : LISTENERS) {
+            listener.imported(this);
+        }
+    }
+
+    /** @return the URI of the PDF */
+    public String getSource() {
+        return source;
+    }
+
+    /** @return the index of the imported page */
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    /**
+     * @param category a category
+     * @return the number of objects cloned of the category
+     */
+    public long getObjects(Category category) {
+        return objects[category.ordinal()];
+    }
+
+    /**
+     * @param category a category
+     * @return the number of bytes of stream data cloned of the category
+     */
+    public long getBytes(Category category) {
+        return bytes[category.ordinal()];
+    }
+
+    /** @return the number of objects cloned */
+    public long getTotalObjects() {
+        long total = 0;
+        for (long n : objects) {
+            total += n;
+        }
+        return total;
+    }
+
+    /** @return the number of bytes of stream data cloned */
+    public long getTotalBytes() {
+        long total = 0;
+        for (long n : bytes) {
+            total += n;
+        }
+        return total;
+    }
+
+    /** @return the number of objects reused from the object cache */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /** @return the time the import took in nanoseconds, -1 if it has not finished yet */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        StringBuilder sb = new StringBuilder(source).append(" page ").append(pageIndex).append(": ")
+                .append(getTotalObjects()).append(" objects, ").append(getTotalBytes()).append(" bytes (");
+        String separator = "";
+        for (Category category : Category.values()) {
+            if (objects[category.ordinal()] > 0) {
+                sb.append(separator).append(category.name().toLowerCase(Locale.ENGLISH)).append(' ')
+                        .append(objects[category.ordinal()]).append('/').append(bytes[category.ordinal()]);
+                separator = ", ";
+            }
+        }
+        sb.append("), ").append(cacheHits).append(" cache hits");
+        if (nanos >= 0) {
+            sb.append(", ").append(nanos / 1000000).append(" ms");
+        }
+        return sb.toString();
+    }
+}
@@ -19,6 +19,7 @@ package org.apache.fop.render.pdf.pdfbox;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -42,6 +43,7 @@ import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
 
 import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.font.PDCIDFontType0;
@@ -81,15 +83,31 @@ public class MergeFontsPDFWriter extends PDFWriter {
 
     public String writeText(PDStream pdStream) throws IOException {
         String txt = super.writeText(pdStream);
-        if (fontsToRemove.isEmpty()) {
-            return null;
-        }
-        for (COSName cn : fontsToRemove.keySet()) {
-            fonts.removeItem(cn);
+        return hasMergedFonts() ? txt : null;
+    }
+
+    /**
+     * Rewrites content with its fonts merged with those of the same name used before. The
+     * fonts merged are removed from the font resources. The content written must not be used
+     * if no font has been merged, see {@link #hasMergedFonts()}.
+     * @param pdfStreamParser the parser of the content
+     * @param out the stream to write the rewritten content to, as ISO-8859-1
+     * @throws IOException if the content cannot be parsed or written
+     */
+    protected void writeText(PDFStreamParser pdfStreamParser, OutputStream out) throws IOException {
+        super.writeText(pdfStreamParser, out);
+        if (hasMergedFonts()) {
+            for (COSName cn : fontsToRemove.keySet()) {
+                fonts.removeItem(cn);
+            }
+            parentFonts.clear();
+            parentFonts.addAll(fontsToRemove.values());
         }
-        parentFonts.clear();
-        parentFonts.addAll(fontsToRemove.values());
-        return txt;
+    }
+
+    /** @return true if fonts of the content have been merged */
+    public boolean hasMergedFonts() {
+        return !fontsToRemove.isEmpty();
     }
 
     protected void readPDFArguments(Operator op, Collection<COSBase> arguments) throws IOException {
@@ -102,7 +120,7 @@ public class MergeFontsPDFWriter extends PDFWriter {
                     internalName = getNewFont(fontData, fontInfo, fontsToRemove.values());
                 }
                 if (fontData == null || internalName == null) {
-                    s.append("/" + key.getName(cn));
+                    s.append("/" + getResourceName(cn));
                     if (op.getName().equals("Tf")) {
                         font = null;
                         oldFont = null;
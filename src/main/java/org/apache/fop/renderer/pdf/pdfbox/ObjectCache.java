@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSDictionary;
+
+/**
+ * Cache of the objects cloned from one PDF, shared by all pages imported from it. Look-ups
+ * and new entries are recorded in the {@link CacheStatistics#OBJECT_CACHES} statistics, and
+ * the entries are counted as evicted once the cache itself has been garbage collected.
+ */
+class ObjectCache extends CloneCache {
+
+    private static final ReferenceQueue<ObjectCache> QUEUE = new ReferenceQueue<ObjectCache>();
+
+    /** keeps the pending references reachable until they are enqueued */
+    private static final Set<CacheReference> REFERENCES
+            = Collections.synchronizedSet(new HashSet<CacheReference>());
+
+    private final CacheStatistics statistics;
+
+    /**
+     * Creates an object cache.
+     * @param path the path of the PDF whose objects are cached
+     */
+    ObjectCache(String path) {
+        expungeStaleCaches();
+        statistics = CacheStatistics.createObjectCacheStatistics(path);
+        REFERENCES.add(new CacheReference(this, statistics));
+    }
+
+    /** @return the usage statistics of this cache */
+    CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object getIndirect(long key) {
+        return recordLookup(toStatisticsKey(key), super.getIndirect(key));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object putIndirect(long key, Object clone) {
+        return recordPut(toStatisticsKey(key), clone, super.putIndirect(key, clone));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object getDirect(COSDictionary dictionary) {
+        return recordLookup(dictionary, super.getDirect(dictionary));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object putDirect(COSDictionary dictionary, Object clone) {
+        return recordPut(dictionary, clone, super.putDirect(dictionary, clone));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object getForm(COSDictionary page) {
+        return recordLookup(page, super.getForm(page));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object putForm(COSDictionary page, Object form) {
+        return recordPut(page, form, super.putForm(page, form));
+    }
+
+    private Object recordLookup(Object key, Object value) {
+        if (value != null) {
+            statistics.recordHit(key);
+        } else {
+            statistics.recordMiss(key);
+        }
+        return value;
+    }
+
+    private Object recordPut(Object key, Object clone, Object previous) {
+        if (clone != null && previous == null) {
+            statistics.recordLoad(key, 0);
+            statistics.recordStored(0);
+        }
+        return previous;
+    }
+
+    /** indirect objects are reported to listeners as "objNum gen", the key is only built for them */
+    private static Object toStatisticsKey(long key) {
+        return CacheStatistics.hasListeners() ? (key >>> 16) + " " + (key & 0xFFFF) : null;
+    }
+
+    private static void expungeStaleCaches() {
+        Reference<? extends ObjectCache> ref;
+        while ((ref = QUEUE.poll()) != null) {
+            REFERENCES.remove(ref);
+            CacheStatistics statistics = ((CacheReference) ref).statistics;
+            statistics.recordEviction(null, statistics.getResidentCount(), statistics.getResidentBytes());
+        }
+    }
+
+    private static final class CacheReference extends WeakReference<ObjectCache> {
+
+        private final CacheStatistics statistics;
+
+        private CacheReference(ObjectCache cache, CacheStatistics statistics) {
+            super(cache, QUEUE);
+            this.statistics = statistics;
+        }
+    }
+}
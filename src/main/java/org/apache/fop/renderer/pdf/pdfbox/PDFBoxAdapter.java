@@ -21,11 +21,13 @@ package org.apache.fop.render.pdf.pdfbox;
 
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,15 +35,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.pdfbox.contentstream.operator.Operator;
 import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSBoolean;
@@ -54,6 +60,7 @@ import org.apache.pdfbox.cos.COSObject;
 import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.cos.COSString;
 
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -67,6 +74,7 @@ import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
 
 import org.apache.fop.fonts.FontInfo;
 import org.apache.fop.fonts.Typeface;
+import org.apache.fop.pdf.FlateFilter;
 import org.apache.fop.pdf.PDFArray;
 import org.apache.fop.pdf.PDFDictionary;
 import org.apache.fop.pdf.PDFDocument;
@@ -76,6 +84,7 @@ import org.apache.fop.pdf.PDFObject;
 import org.apache.fop.pdf.PDFPage;
 import org.apache.fop.pdf.PDFRoot;
 import org.apache.fop.pdf.PDFStream;
+import org.apache.fop.pdf.PDFText;
 
 /**
  * This class provides an adapter for transferring content from a PDFBox PDDocument to
@@ -90,29 +99,92 @@ public class PDFBoxAdapter {
     private static final Set FILTER_FILTER = new HashSet(
             Arrays.asList(new String[] {"Filter", "DecodeParms"}));
 
+    /** the default of {@link #setRecompressionLevel(int)} */
+    private static final int RECOMPRESSION_LEVEL = Integer.getInteger("fop.pdfbox.recompress-level", -1);
+
+    /** resource categories whose entries are referenced by name from content streams */
+    private static final Set<COSName> NAMED_RESOURCES = new HashSet<COSName>(Arrays.asList(COSName.FONT,
+            COSName.XOBJECT, COSName.EXT_G_STATE, COSName.SHADING, COSName.COLORSPACE, COSName.PATTERN,
+            COSName.PROPERTIES));
+
+    /** subtypes of embedded font programs */
+    private static final Set<COSName> FONT_PROGRAMS = new HashSet<COSName>(Arrays.asList(
+            COSName.getPDFName("Type1C"), COSName.getPDFName("CIDFontType0C"), COSName.getPDFName("OpenType")));
+
+    /** marks a clone which is completed by a frame pushed onto the stack */
+    private static final Object PENDING = new Object();
+
     private final PDFPage targetPage;
     private final PDFDocument pdfDoc;
 
-    private final Map clonedVersion;
+    private final CloneCache clonedVersion;
     private Map<COSName, String> newXObj = new HashMap<COSName, String>();
     private Map<Integer, PDFArray> pageNumbers;
     private Collection<String> parentFonts = new ArrayList<String>();
 
     private int currentMCID;
 
+    private byte[] pageContents;
+
+    private DocumentHandle documentHandle;
+
+    private boolean shareStreams = StreamIndex.ENABLED;
+
+    private boolean cloneTemplates;
+
+    private boolean formXObjects;
+
+    private boolean parallelStreams = StreamFetcher.ENABLED;
+
+    private final StreamFetcher streamFetcher = new StreamFetcher();
+
+    private int recompressionLevel = RECOMPRESSION_LEVEL;
+
+    private int downsampleResolution = ImageDownsampler.RESOLUTION;
+
+    /** the sizes to downsample the images of the page being imported to, null if none are */
+    private Map<COSStream, int[]> downsampledSizes;
+
+    private ImportStatistics statistics;
+
+    /** the category of all objects cloned, null to tell by the objects */
+    private ImportStatistics.Category statisticsCategory;
+
     /**
      * Creates a new PDFBoxAdapter.
      * @param targetPage The target FOP PDF page object
      * @param objectCache the object cache for reusing objects shared by multiple pages.
      * @param pageNumbers references to page object numbers
      */
-    public PDFBoxAdapter(PDFPage targetPage, Map objectCache, Map<Integer, PDFArray> pageNumbers) {
+    public PDFBoxAdapter(PDFPage targetPage, CloneCache objectCache, Map<Integer, PDFArray> pageNumbers) {
         this.targetPage = targetPage;
         this.pdfDoc = this.targetPage.getDocument();
         this.clonedVersion = objectCache;
         this.pageNumbers = pageNumbers;
     }
 
+    /**
+     * Creates a new PDFBoxAdapter. The cloned objects are kept in a {@link CloneCache} stored in
+     * the given map, so adapters created with the same map share them.
+     * @param targetPage The target FOP PDF page object
+     * @param objectCache the object cache for reusing objects shared by multiple pages.
+     * @param pageNumbers references to page object numbers
+     * @deprecated use {@link #PDFBoxAdapter(PDFPage, CloneCache, Map)}
+     */
+    @Deprecated
+    public PDFBoxAdapter(PDFPage targetPage, Map objectCache, Map<Integer, PDFArray> pageNumbers) {
+        this(targetPage, getCloneCache(objectCache), pageNumbers);
+    }
+
+    private static CloneCache getCloneCache(Map objectCache) {
+        CloneCache cache = (CloneCache) objectCache.get(CloneCache.class);
+        if (cache == null) {
+            cache = new CloneCache();
+            objectCache.put(CloneCache.class, cache);
+        }
+        return cache;
+    }
+
     public PDFPage getTargetPage() {
         return targetPage;
     }
@@ -125,6 +197,108 @@ public class PDFBoxAdapter {
         this.currentMCID = currentMCID;
     }
 
+    /**
+     * Sets the source document of the pages to be imported. Streams are then copied from the
+     * source document only when the target document is written, instead of when they are
+     * cloned; the source document is kept open until then.
+     * @param documentHandle the source document (may be null)
+     */
+    public void setDocumentHandle(DocumentHandle documentHandle) {
+        this.documentHandle = documentHandle;
+    }
+
+    /**
+     * Sets whether imported streams are shared with identical streams imported before into
+     * the same target document, from any source document. Defaults to the system property
+     * <code>fop.pdfbox.stream-dedup</code>.
+     * @param shareStreams true to write identical streams only once
+     */
+    public void setShareStreams(boolean shareStreams) {
+        this.shareStreams = shareStreams;
+    }
+
+    /**
+     * Sets whether imported pages are recorded as relocatable templates which later imports of
+     * the same page, into this or other target documents, use instead of cloning the source
+     * objects again. This requires the {@link #setDocumentHandle(DocumentHandle) source document}
+     * and must not be enabled if the logical structure of the page is imported. Templates are
+     * not used if fonts are merged or the target document is encrypted.
+     * @param cloneTemplates true to use templates
+     */
+    public void setCloneTemplates(boolean cloneTemplates) {
+        this.cloneTemplates = cloneTemplates;
+    }
+
+    /**
+     * Sets whether imported pages are placed as form XObjects which carry the content stream of
+     * the page as it is, still encoded, and the resources of the page as their own. The content
+     * then needs neither be parsed nor rewritten, and the form XObject is reused if the page is
+     * placed again. This must not be enabled if the logical structure of the page is imported,
+     * as the marked content IDs are not shifted. Pages are imported as usual if fonts are merged,
+     * images are downsampled or the page has more than one content stream.
+     * @param formXObjects true to place pages as form XObjects
+     */
+    public void setFormXObjects(boolean formXObjects) {
+        this.formXObjects = formXObjects;
+    }
+
+    /**
+     * Sets whether the data of the cloned streams is copied on worker threads. The streams are
+     * then buffered when they are cloned rather than copied from the source document when
+     * they are written, trading memory for latency. Defaults to the system property
+     * <code>fop.pdfbox.parallel-streams</code>.
+     * @param parallelStreams true to copy the stream data in parallel
+     */
+    public void setParallelStreams(boolean parallelStreams) {
+        this.parallelStreams = parallelStreams;
+    }
+
+    /**
+     * Sets the Flate compression level for streams which are transferred decoded, such as all
+     * streams when the target document is encrypted. Their data is then re-encoded on worker
+     * threads while the page is imported instead of being carried forward uncompressed.
+     * Defaults to the system property <code>fop.pdfbox.recompress-level</code>.
+     * @param level the compression level (0-9), -1 to transfer decoded data as it is
+     */
+    public void setRecompressionLevel(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.recompressionLevel = level;
+    }
+
+    /**
+     * Sets the resolution which images are downsampled to if their resolution at the size the
+     * page is placed at is considerably higher, see {@link ImageDownsampler}. Clone templates
+     * are not used then. Defaults to the system property <code>fop.pdfbox.downsample-dpi</code>.
+     * @param resolution the target resolution in dpi, 0 not to downsample images
+     */
+    public void setDownsampleResolution(int resolution) {
+        if (resolution < 0) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        this.downsampleResolution = resolution;
+    }
+
+    /**
+     * Sets the statistics which record the objects cloned for the page to be imported and
+     * those reused from the object cache. Objects cloned after the page, i.e. through
+     * {@link TaggedPDFConductor}, are recorded as its logical structure.
+     * @param statistics the statistics (may be null)
+     */
+    public void setStatistics(ImportStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Sets the decoded contents of the page to be imported if they are already available,
+     * e.g. because they have been prefetched.
+     * @param pageContents the decoded page contents (may be null)
+     */
+    public void setPageContents(byte[] pageContents) {
+        this.pageContents = pageContents;
+    }
+
     protected Object cloneForNewDocument(Object base) throws IOException {
         return cloneForNewDocument(base, base);
     }
@@ -133,48 +307,93 @@ public class PDFBoxAdapter {
         return cloneForNewDocument(base, keyBase, Collections.EMPTY_LIST);
     }
 
+    /**
+     * Clones an object graph into the target document. The graph is walked with an explicit
+     * stack of {@link CloneFrame}s instead of recursion, so deeply nested or long chained
+     * graphs cannot overflow the Java stack. Objects are cloned, cached and registered in the
+     * same order as a depth-first recursive walk would. In parallel mode the data of the cloned
+     * streams is copied once the walk is complete.
+     */
     protected Object cloneForNewDocument(Object base, Object keyBase, Collection exclude) throws IOException {
+        List<CloneFrame> stack = new ArrayList<CloneFrame>();
+        try {
+            Object value = enterClone(base, keyBase, exclude, stack);
+            while (true) {
+                if (value != PENDING) {
+                    if (stack.isEmpty()) {
+                        streamFetcher.fetch();
+                        return value;
+                    }
+                    stack.get(stack.size() - 1).accept(value);
+                }
+                CloneFrame frame = stack.get(stack.size() - 1);
+                if (frame.advance()) {
+                    value = enterClone(frame.childBase, frame.childKeyBase, frame.exclude, stack);
+                } else {
+                    stack.remove(stack.size() - 1);
+                    value = frame.finish();
+                }
+            }
+        } finally {
+            streamFetcher.clear();
+        }
+    }
+
+    /**
+     * Starts cloning an object. Objects without children are cloned right away, for the others
+     * a frame is pushed which clones their children.
+     * @return the clone or {@link #PENDING} if a frame has been pushed
+     */
+    private Object enterClone(Object base, Object keyBase, Collection exclude, List<CloneFrame> stack)
+            throws IOException {
         if (base == null) {
             return null;
         }
         Object cached = getCachedClone(keyBase);
+        if (cached instanceof ImageDownsampler.DownsampledImage) {
+            Object image = base instanceof COSObject ? ((COSObject) base).getObject() : base;
+            if (!((ImageDownsampler.DownsampledImage) cached).isSufficient(
+                    downsampledSizes != null ? downsampledSizes.get(image) : null)) {
+                //the image is placed larger than before, it is cloned again
+                cached = null;
+            }
+        }
         if (cached != null) {
             // we are done, it has already been converted.
+            if (statistics != null) {
+                statistics.addCacheHit();
+            }
             return cached;
         } else if (base instanceof List) {
             PDFArray array = new PDFArray();
             cacheClonedObject(keyBase, array);
-            List list = (List)base;
-            for (Object o : list) {
-                array.add(cloneForNewDocument(o, o, exclude));
-            }
-            return array;
+            stack.add(new ArrayFrame(((List) base).iterator(), array, exclude));
+            return PENDING;
         } else if (base instanceof COSObjectable && !(base instanceof COSBase)) {
-            Object o = ((COSObjectable)base).getCOSObject();
-            Object retval = cloneForNewDocument(o, o, exclude);
-            return cacheClonedObject(keyBase, retval);
+            stack.add(new ObjectableFrame(((COSObjectable) base).getCOSObject(), keyBase, exclude));
+            return PENDING;
         } else if (base instanceof COSObject) {
-            return readCOSObject((COSObject) base, exclude);
+            COSObject object = (COSObject) base;
+            if (log.isTraceEnabled()) {
+                log.trace("Cloning indirect object: "
+                        + object.getObjectNumber()
+                        + " " + object.getGenerationNumber());
+            }
+            stack.add(new IndirectFrame(object, exclude));
+            return PENDING;
         } else if (base instanceof COSArray) {
             PDFArray newArray = new PDFArray();
             cacheClonedObject(keyBase, newArray);
-            COSArray array = (COSArray)base;
-            for (int i = 0; i < array.size(); i++) {
-                newArray.add(cloneForNewDocument(array.get(i), array.get(i), exclude));
-            }
-            return newArray;
-//        } else if (base instanceof COSStreamArray) {
-//            COSStreamArray array = (COSStreamArray)base;
-//            PDFArray newArray = new PDFArray();
-//            cacheClonedObject(keyBase, newArray);
-//            for (int i = 0, c = array.getStreamCount(); i < c; i++) {
-//                newArray.add(cloneForNewDocument(array.get(i)));
-//            }
-//            return newArray;
+            stack.add(new ArrayFrame(((COSArray) base).iterator(), newArray, exclude));
+            return PENDING;
         } else if (base instanceof COSStream) {
-            return readCOSStream((COSStream) base, keyBase);
+            stack.add(readCOSStream((COSStream) base, keyBase));
+            return PENDING;
         } else if (base instanceof COSDictionary) {
-            return readCOSDictionary((COSDictionary) base, keyBase, exclude);
+            PDFDictionary newDict = new PDFDictionary();
+            cacheClonedObject(keyBase, newDict);
+            stack.add(new DictionaryFrame((COSDictionary) base, newDict, exclude));
+            return PENDING;
         } else if (base instanceof COSName) {
             PDFName newName = new PDFName(((COSName)base).getName());
             return cacheClonedObject(keyBase, newName);
@@ -203,42 +422,6 @@ public class PDFBoxAdapter {
         }
     }
 
-    private PDFDictionary readCOSDictionary(COSDictionary dic, Object keyBase, Collection exclude) throws IOException {
-        PDFDictionary newDict = new PDFDictionary();
-        cacheClonedObject(keyBase, newDict);
-        for (Map.Entry<COSName, COSBase> e : dic.entrySet()) {
-            if (!exclude.contains(e.getKey())) {
-                newDict.put(e.getKey().getName(), cloneForNewDocument(e.getValue(), e.getValue(), exclude));
-            }
-        }
-        return newDict;
-    }
-
-    private Object readCOSObject(COSObject object, Collection exclude) throws IOException {
-        if (log.isTraceEnabled()) {
-            log.trace("Cloning indirect object: "
-                    + object.getObjectNumber()
-                    + " " + object.getGenerationNumber());
-        }
-        Object obj = cloneForNewDocument(object.getObject(), object, exclude);
-        if (obj instanceof PDFObject) {
-            PDFObject pdfobj = (PDFObject)obj;
-            //pdfDoc.registerObject(pdfobj);
-            if (!pdfobj.hasObjectNumber()) {
-                throw new IllegalStateException("PDF object was not registered!");
-            }
-            if (log.isTraceEnabled()) {
-                log.trace("Object registered: "
-                        + pdfobj.getObjectNumber()
-                        + " " + pdfobj.getGeneration()
-                        + " for COSObject: "
-                        + object.getObjectNumber()
-                        + " " + object.getGenerationNumber());
-            }
-        }
-        return obj;
-    }
-
     private Object readCOSString(COSString string, Object keyBase) {
         //retval = ((COSString)base).getString(); //this is unsafe for binary content
         byte[] bytes = string.getBytes();
@@ -256,55 +439,435 @@ public class PDFBoxAdapter {
         }
     }
 
-    private Object readCOSStream(COSStream originalStream, Object keyBase) throws IOException {
-        InputStream in;
+    private CloneFrame readCOSStream(COSStream originalStream, Object keyBase) throws IOException {
+        int[] size = downsampledSizes != null && keyBase instanceof COSObject
+                ? downsampledSizes.get(originalStream) : null;
+        if (size != null) {
+            ImageDownsampler.DownsampledImage image = new ImageDownsampler.DownsampledImage(originalStream,
+                    size[0], size[1], recompressionLevel);
+            if (parallelStreams) {
+                streamFetcher.add(image);
+            } else {
+                image.downsample();
+            }
+            return new StreamFrame(originalStream, image, ImageDownsampler.REPLACED_ENTRIES, keyBase, null);
+        }
+        boolean decoded;
         Set filter;
-        if (pdfDoc.isEncryptionActive()
-                || (originalStream.containsKey(COSName.DECODE_PARMS) && !originalStream.containsKey(COSName.FILTER))) {
-            in = originalStream.getUnfilteredStream();
+        if (isTransferredDecoded(originalStream)) {
+            decoded = true;
             filter = FILTER_FILTER;
         } else {
             //transfer encoded data (don't reencode)
-            in = originalStream.getFilteredStream();
+            decoded = false;
             filter = Collections.EMPTY_SET;
         }
-        PDFStream stream = new PDFStream();
-        OutputStream out = stream.getBufferOutputStream();
-        IOUtils.copyLarge(in, out);
-        transferDict(originalStream, stream, filter);
-        return cacheClonedObject(keyBase, stream);
+        MessageDigest digest = null;
+        //form XObjects get their content replaced when fonts are merged, they cannot be shared
+        if (shareStreams && keyBase instanceof COSObject && !(pdfDoc.isMergeFontsEnabled()
+                && COSName.FORM.equals(originalStream.getCOSName(COSName.SUBTYPE)))) {
+            digest = PDFUtil.createSHA1Digest();
+        }
+        //decoded data is carried forward uncompressed unless it is re-encoded
+        int level = decoded && keyBase instanceof COSObject ? recompressionLevel : -1;
+        PDFStream stream;
+        OutputStream out;
+        //only indirect streams are registered and thus written to the target document
+        if (keyBase instanceof COSObject && (parallelStreams || level >= 0) && digest == null) {
+            stream = new PDFStream();
+            streamFetcher.add(originalStream, decoded, stream, level);
+            out = null;
+        } else if (keyBase instanceof COSObject && level < 0 && documentHandle != null
+                && documentHandle.tryRetain()) {
+            //the data is copied once the stream is written
+            stream = new DeferredPDFStream(originalStream, decoded, documentHandle);
+            out = digest != null ? new NullOutputStream() : null;
+        } else {
+            stream = new PDFStream();
+            out = stream.getBufferOutputStream();
+        }
+        if (out != null) {
+            InputStream in = StreamFetcher.open(originalStream, decoded);
+            if (digest != null) {
+                in = new DigestInputStream(in, digest);
+            }
+            StreamFetcher.copy(in, out, level);
+        }
+        if (level >= 0) {
+            //the data is encoded already, FOP only adds the filter entry (and encrypts the data)
+            FlateFilter flate = new FlateFilter();
+            flate.setApplied(true);
+            stream.getFilterList().addFilter(flate);
+        }
+        return new StreamFrame(originalStream, stream, filter, keyBase, digest);
+    }
+
+    /** @return true if the data of a stream is transferred decoded rather than as it is */
+    private boolean isTransferredDecoded(COSStream stream) {
+        return pdfDoc.isEncryptionActive()
+                || (stream.containsKey(COSName.DECODE_PARMS) && !stream.containsKey(COSName.FILTER));
+    }
+
+    /**
+     * An object whose children are being cloned. The children are handed out one after the
+     * other by {@link #advance()} and their clones passed back to {@link #accept(Object)}.
+     */
+    private abstract class CloneFrame {
+
+        /** the child to clone next */
+        protected Object childBase;
+
+        /** the key under which the clone of the child is cached */
+        protected Object childKeyBase;
+
+        protected final Collection exclude;
+
+        protected CloneFrame(Collection exclude) {
+            this.exclude = exclude;
+        }
+
+        /**
+         * Moves to the next child to clone.
+         * @return false if all children have been cloned
+         */
+        abstract boolean advance();
+
+        /**
+         * Receives the clone of the current child.
+         * @param clone the clone
+         */
+        abstract void accept(Object clone);
+
+        /**
+         * Completes the clone once all children have been cloned.
+         * @return the clone
+         */
+        abstract Object finish();
+    }
+
+    private final class ArrayFrame extends CloneFrame {
+
+        private final Iterator<?> items;
+
+        private final PDFArray array;
+
+        private ArrayFrame(Iterator<?> items, PDFArray array, Collection exclude) {
+            super(exclude);
+            this.items = items;
+            this.array = array;
+        }
+
+        boolean advance() {
+            if (!items.hasNext()) {
+                return false;
+            }
+            childBase = items.next();
+            childKeyBase = childBase;
+            return true;
+        }
+
+        void accept(Object clone) {
+            array.add(clone);
+        }
+
+        Object finish() {
+            return array;
+        }
+    }
+
+    private final class DictionaryFrame extends CloneFrame {
+
+        private final Iterator<Map.Entry<COSName, COSBase>> entries;
+
+        private final PDFDictionary dict;
+
+        private String name;
+
+        private DictionaryFrame(COSDictionary dic, PDFDictionary dict, Collection exclude) {
+            super(exclude);
+            this.entries = dic.entrySet().iterator();
+            this.dict = dict;
+        }
+
+        boolean advance() {
+            while (entries.hasNext()) {
+                Map.Entry<COSName, COSBase> e = entries.next();
+                if (!exclude.contains(e.getKey())) {
+                    name = e.getKey().getName();
+                    childBase = e.getValue();
+                    childKeyBase = childBase;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void accept(Object clone) {
+            dict.put(name, clone);
+        }
+
+        Object finish() {
+            return dict;
+        }
+    }
+
+    /** transfers the dictionary of a stream, the stream is registered once it is complete */
+    private final class StreamFrame extends CloneFrame {
+
+        private final COSStream originalStream;
+
+        private final Iterator<COSName> keys;
+
+        private final PDFStream stream;
+
+        private final Set filter;
+
+        private final Object keyBase;
+
+        /** digest of the stream data if the stream may be shared with identical ones */
+        private final MessageDigest digest;
+
+        private final Map<String, Object> entries = new TreeMap<String, Object>();
+
+        private String name;
+
+        private StreamFrame(COSStream originalStream, PDFStream stream, Set filter, Object keyBase,
+                            MessageDigest digest) {
+            super(Collections.EMPTY_LIST);
+            this.originalStream = originalStream;
+            this.keys = originalStream.keySet().iterator();
+            this.stream = stream;
+            this.filter = filter;
+            this.keyBase = keyBase;
+            this.digest = digest;
+        }
+
+        boolean advance() {
+            while (keys.hasNext()) {
+                COSName key = keys.next();
+                if (!filter.contains(key.getName())) {
+                    name = key.getName();
+                    childBase = originalStream.getItem(key);
+                    childKeyBase = childBase;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void accept(Object clone) {
+            stream.put(name, clone);
+            //the length is implied by the data
+            if (digest != null && !"Length".equals(name)) {
+                entries.put(name, clone);
+            }
+        }
+
+        Object finish() {
+            if (digest != null) {
+                StringBuilder sb = new StringBuilder();
+                if (describe(entries, sb)) {
+                    //the digest of the data followed by the dictionary, so neither can shift into the other
+                    String key = PDFText.toHex(digest.digest()) + sb;
+                    PDFStream existing = StreamIndex.getInstance(pdfDoc).putIfAbsent(key, stream);
+                    if (existing != null) {
+                        if (stream instanceof DeferredPDFStream) {
+                            ((DeferredPDFStream) stream).discard();
+                        }
+                        return cacheClonedObject(keyBase, existing);
+                    }
+                }
+            }
+            return cacheClonedObject(keyBase, stream);
+        }
+    }
+
+    /**
+     * Appends a canonical description of cloned objects, equal for equal objects.
+     * @return false if the objects cannot be described
+     */
+    private static boolean describe(Map<String, Object> entries, StringBuilder sb) {
+        sb.append("<<");
+        for (Map.Entry<String, Object> e : entries.entrySet()) {
+            sb.append('/').append(e.getKey()).append(' ');
+            if (!describe(e.getValue(), sb)) {
+                return false;
+            }
+        }
+        sb.append(">>");
+        return true;
+    }
+
+    private static boolean describe(Object value, StringBuilder sb) {
+        if (value instanceof PDFObject && ((PDFObject) value).hasObjectNumber()) {
+            sb.append(((PDFObject) value).referencePDF());
+        } else if (value instanceof PDFDictionary) {
+            PDFDictionary dict = (PDFDictionary) value;
+            Map<String, Object> entries = new TreeMap<String, Object>();
+            for (String key : dict.keySet()) {
+                entries.put(key, dict.get(key));
+            }
+            return describe(entries, sb);
+        } else if (value instanceof PDFArray) {
+            PDFArray array = (PDFArray) value;
+            sb.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (!describe(array.get(i), sb)) {
+                    return false;
+                }
+            }
+            sb.append(']');
+        } else if (value instanceof PDFName) {
+            sb.append(value);
+        } else if (value instanceof PDFNumber) {
+            sb.append(((PDFNumber) value).getNumber());
+        } else if (value instanceof byte[]) {
+            sb.append(PDFText.toHex((byte[]) value));
+        } else if (value instanceof String) {
+            sb.append('(').append(value).append(')');
+        } else if (value == null || value instanceof Boolean || value instanceof Number) {
+            sb.append(value);
+        } else {
+            return false;
+        }
+        sb.append(' ');
+        return true;
+    }
+
+    /** clones the COS object of a PDModel object and caches it under the PDModel object */
+    private final class ObjectableFrame extends CloneFrame {
+
+        private final Object keyBase;
+
+        private Object result;
+
+        private boolean done;
+
+        private ObjectableFrame(COSBase cosObject, Object keyBase, Collection exclude) {
+            super(exclude);
+            this.childBase = cosObject;
+            this.childKeyBase = cosObject;
+            this.keyBase = keyBase;
+        }
+
+        boolean advance() {
+            return !done;
+        }
+
+        void accept(Object clone) {
+            result = clone;
+            done = true;
+        }
+
+        Object finish() {
+            return cacheClonedObject(keyBase, result);
+        }
+    }
+
+    /** clones the object referenced by an indirect object, which is cached under the latter */
+    private final class IndirectFrame extends CloneFrame {
+
+        private final COSObject object;
+
+        private Object result;
+
+        private boolean done;
+
+        private IndirectFrame(COSObject object, Collection exclude) {
+            super(exclude);
+            this.object = object;
+            this.childBase = object.getObject();
+            this.childKeyBase = object;
+        }
+
+        boolean advance() {
+            return !done;
+        }
+
+        void accept(Object clone) {
+            result = clone;
+            done = true;
+        }
+
+        Object finish() {
+            if (result instanceof PDFObject) {
+                PDFObject pdfobj = (PDFObject) result;
+                //pdfDoc.registerObject(pdfobj);
+                if (!pdfobj.hasObjectNumber()) {
+                    throw new IllegalStateException("PDF object was not registered!");
+                }
+                if (log.isTraceEnabled()) {
+                    log.trace("Object registered: "
+                            + pdfobj.getObjectNumber()
+                            + " " + pdfobj.getGeneration()
+                            + " for COSObject: "
+                            + object.getObjectNumber()
+                            + " " + object.getGenerationNumber());
+                }
+            }
+            return result;
+        }
     }
 
     protected Object getCachedClone(Object base) {
-        return clonedVersion.get(getBaseKey(base));
+        if (base instanceof COSObject) {
+            return clonedVersion.getIndirect(CloneCache.getKey((COSObject) base));
+        } else if (base instanceof COSDictionary) {
+            return clonedVersion.getDirect((COSDictionary) base);
+        } else {
+            return null;
+        }
     }
 
     protected Object cacheClonedObject(Object base, Object cloned) {
-        Object key = getBaseKey(base);
-        if (key == null) {
+        if (!(base instanceof COSObject) && !(base instanceof COSDictionary)) {
             return cloned;
         }
         PDFObject pdfobj = (PDFObject) cloned;
         if (pdfobj != null && !pdfobj.hasObjectNumber() && !(base instanceof COSDictionary)) {
             pdfDoc.registerObject(pdfobj);
+            if (statistics != null) {
+                COSBase object = ((COSObject) base).getObject();
+                statistics.addObject(getCategory(object),
+                        object instanceof COSStream ? ((COSStream) object).getLength() : 0);
+            }
             if (log.isTraceEnabled()) {
-                log.trace(key + ": " + pdfobj.getClass().getName() + " registered as "
+                COSObject obj = (COSObject) base;
+                log.trace(obj.getObjectNumber() + " " + obj.getGenerationNumber() + ": "
+                        + pdfobj.getClass().getName() + " registered as "
                         + pdfobj.getObjectNumber() + " " + pdfobj.getGeneration());
             }
         }
-        clonedVersion.put(key, cloned);
+        if (base instanceof COSObject) {
+            clonedVersion.putIndirect(CloneCache.getKey((COSObject) base), cloned);
+        } else {
+            clonedVersion.putDirect((COSDictionary) base, cloned);
+        }
         return cloned;
     }
 
-    private Object getBaseKey(Object base) {
-        if (base instanceof COSObject) {
-            COSObject obj = (COSObject)base;
-            return obj.getObjectNumber() + " " + obj.getGenerationNumber();
-        } else if (base instanceof COSDictionary) {
-            return base;
-        } else {
-            return null;
+    private ImportStatistics.Category getCategory(COSBase object) {
+        if (statisticsCategory != null) {
+            return statisticsCategory;
+        } else if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            COSName subtype = stream.getCOSName(COSName.SUBTYPE);
+            if (COSName.IMAGE.equals(subtype)) {
+                return ImportStatistics.Category.IMAGE;
+            } else if (COSName.FORM.equals(subtype)) {
+                return ImportStatistics.Category.FORM;
+            } else if (stream.containsKey(COSName.LENGTH1) || FONT_PROGRAMS.contains(subtype)) {
+                return ImportStatistics.Category.FONT;
+            } else if (stream.containsKey(COSName.N)) {
+                return ImportStatistics.Category.ICC;
+            }
+        } else if (object instanceof COSDictionary) {
+            COSName type = ((COSDictionary) object).getCOSName(COSName.TYPE);
+            if (COSName.FONT.equals(type) || COSName.FONT_DESC.equals(type)) {
+                return ImportStatistics.Category.FONT;
+            }
         }
+        return ImportStatistics.Category.OTHER;
     }
 
     private void transferDict(COSDictionary orgDict, PDFStream targetDict, Set filter) throws IOException {
@@ -339,21 +902,64 @@ public class PDFBoxAdapter {
     public String createStreamFromPDFBoxPage(PDDocument sourceDoc, PDPage page, String key,
                                              AffineTransform atdoc, FontInfo fontinfo, Rectangle pos)
         throws IOException {
+        Object templateKey = null;
+        boolean passThrough = formXObjects && !pdfDoc.isMergeFontsEnabled() && downsampleResolution == 0
+                && page.getCOSObject().getDictionaryObject(COSName.CONTENTS) instanceof COSStream;
+        if (cloneTemplates && !passThrough && documentHandle != null && !pdfDoc.isMergeFontsEnabled()
+                && !pdfDoc.isEncryptionActive() && downsampleResolution == 0) {
+            templateKey = CloneTemplate.getKey(page, key);
+            CloneTemplate template = documentHandle.getCloneTemplate(templateKey);
+            if (template != null) {
+                pageContents = null;
+                updatePageNumbers();
+                template.instantiate(pdfDoc, targetPage.getPDFResources(), clonedVersion);
+                recordContent(template.getContent().length());
+                return placePage(template.getMediaBox(), template.getViewBox(), template.getRotation(), atdoc, pos)
+                        + template.getContent();
+            }
+            //the annotations are imported by cloning only
+            if (!page.getAnnotations().isEmpty() || sourceDoc.getDocumentCatalog().getAcroForm() != null) {
+                templateKey = null;
+            }
+        }
+        statisticsCategory = ImportStatistics.Category.ANNOTATION;
         handleAnnotations(sourceDoc, page, atdoc);
-        if (pageNumbers.containsKey(targetPage.getPageIndex())) {
-            pageNumbers.get(targetPage.getPageIndex()).set(0, targetPage.makeReference());
+        statisticsCategory = null;
+        updatePageNumbers();
+        if (passThrough) {
+            pageContents = null;
+            return placeForm(page, atdoc, pos);
         }
         PDResources sourcePageResources = page.getResources();
-        PDStream pdStream = getContents(page);
+        byte[] contents = getContents(page);
+
+        PDRectangle mediaBox = page.getMediaBox();
+        PDRectangle cropBox = page.getCropBox();
+        PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
+
+        //Handle the /Rotation entry on the page dict
+        int rotation = PDFUtil.getNormalizedRotation(page);
+
+        //the rewritten content is written right after the clip, with no intermediate copies
+        byte[] clip = placePage(mediaBox, viewBox, rotation, atdoc, pos).getBytes("ISO-8859-1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(clip.length + contents.length);
+        out.write(clip);
 
         COSDictionary fonts = (COSDictionary)sourcePageResources.getCOSObject().getDictionaryObject(COSName.FONT);
         COSDictionary fontsBackup = null;
         UniqueName uniqueName = new UniqueName(key, sourcePageResources);
-        String newStream = null;
+        boolean written = false;
+        Set<COSName> usedNames = null;
         if (fonts != null && pdfDoc.isMergeFontsEnabled()) {
             fontsBackup = new COSDictionary(fonts);
             MergeFontsPDFWriter m = new MergeFontsPDFWriter(fonts, fontinfo, uniqueName, parentFonts, currentMCID);
-            newStream = m.writeText(pdStream);
+            m.writeText(contents, out);
+            usedNames = m.getUsedNames();
+            written = m.hasMergedFonts();
+            if (!written) {
+                out.reset();
+                out.write(clip);
+            }
 //            if (newStream != null) {
 //                for (Object f : fonts.keySet().toArray()) {
 //                    COSDictionary fontdata = (COSDictionary)fonts.getDictionaryObject((COSName)f);
@@ -363,15 +969,20 @@ public class PDFBoxAdapter {
 //                }
 //            }
         }
-        if (newStream == null) {
+        if (!written) {
             PDFWriter writer = new PDFWriter(uniqueName, currentMCID);
-            newStream = writer.writeText(pdStream);
+            writer.writeText(contents, out);
+            usedNames = writer.getUsedNames();
             currentMCID = writer.getCurrentMCID();
 
         }
-        pdStream = new PDStream(sourceDoc, new ByteArrayInputStream(newStream.getBytes("ISO-8859-1")));
         mergeXObj(sourcePageResources.getCOSObject(), fontinfo, uniqueName);
-        PDFDictionary pageResources = (PDFDictionary)cloneForNewDocument(sourcePageResources.getCOSObject());
+        COSDictionary usedResources = getUsedResources(sourcePageResources.getCOSObject(), usedNames);
+        if (downsampleResolution > 0) {
+            //applies to the resources until they have been transferred
+            downsampledSizes = ImageDownsampler.getSizes(page, pos, downsampleResolution);
+        }
+        PDFDictionary pageResources = cloneUsedResources(sourcePageResources.getCOSObject(), usedResources);
 
         PDFDictionary fontDict = (PDFDictionary)pageResources.get("Font");
         if (fontDict != null && pdfDoc.isMergeFontsEnabled()) {
@@ -387,44 +998,105 @@ public class PDFBoxAdapter {
                 }
             }
         }
-        updateXObj(sourcePageResources.getCOSObject(), pageResources);
+        updateXObj(usedResources, pageResources);
         if (fontsBackup != null) {
             sourcePageResources.getCOSObject().setItem(COSName.FONT, fontsBackup);
         }
 
-        COSStream originalPageContents = pdStream.getCOSObject();
-
         bindOptionalContent(sourceDoc);
 
-        PDFStream pageStream;
-        Set filter;
-//        if (originalPageContents instanceof COSStreamArray) {
-//            COSStreamArray array = (COSStreamArray)originalPageContents;
-//            pageStream = new PDFStream();
-//            InputStream in = array.getUnfilteredStream();
-//            OutputStream out = pageStream.getBufferOutputStream();
-//            IOUtils.copyLarge(in, out);
-//            filter = FILTER_FILTER;
-//        } else {
-            pageStream = (PDFStream)cloneForNewDocument(originalPageContents);
-            filter = Collections.EMPTY_SET;
-//        }
-        if (pageStream == null) {
-            pageStream = new PDFStream();
+        if (!pdfDoc.isMergeFontsEnabled()) {
+            fonts = (COSDictionary) usedResources.getDictionaryObject(COSName.FONT);
         }
-        if (originalPageContents != null) {
-            transferDict(originalPageContents, pageStream, filter);
+        transferPageDict(fonts, uniqueName, usedResources);
+        downsampledSizes = null;
+
+        String stream = out.toString("ISO-8859-1");
+        if (templateKey != null) {
+            CloneTemplate template = CloneTemplate.record(usedResources, uniqueName,
+                    stream.substring(clip.length), mediaBox, viewBox, rotation);
+            if (template != null) {
+                documentHandle.putCloneTemplate(templateKey, template);
+            }
         }
+        recordContent(stream.length() - clip.length);
+        return stream;
+    }
 
-        transferPageDict(fonts, uniqueName, sourcePageResources);
+    /**
+     * Places a page as a form XObject, see {@link #setFormXObjects(boolean)}.
+     * @return the content placing the form XObject
+     */
+    private String placeForm(PDPage page, AffineTransform atdoc, Rectangle pos) throws IOException {
+        COSDictionary pageDict = page.getCOSObject();
+        PDFStream form = (PDFStream) clonedVersion.getForm(pageDict);
+        if (form == null) {
+            COSStream contents = (COSStream) pageDict.getDictionaryObject(COSName.CONTENTS);
+            boolean decoded = isTransferredDecoded(contents);
+            if (documentHandle != null && documentHandle.tryRetain()) {
+                //the content is copied straight from the source document once the form is written
+                form = new DeferredPDFStream(contents, decoded, documentHandle);
+            } else {
+                form = new PDFStream();
+                StreamFetcher.copy(StreamFetcher.open(contents, decoded), form.getBufferOutputStream(), -1);
+            }
+            if (!decoded) {
+                transferDict(contents, form, FILTER_FILTER, true);
+            }
+            form.put("Type", new PDFName("XObject"));
+            form.put("Subtype", new PDFName("Form"));
+            form.put("BBox", cloneForNewDocument(page.getMediaBox().getCOSArray()));
+            form.put("Resources", cloneForNewDocument(page.getResources().getCOSObject()));
+            COSBase group = pageDict.getItem(COSName.GROUP);
+            if (group != null) {
+                form.put("Group", cloneForNewDocument(group));
+            }
+            pdfDoc.registerObject(form);
+            clonedVersion.putForm(pageDict, form);
+            if (statistics != null) {
+                statistics.addObject(ImportStatistics.Category.FORM, contents.getLength());
+            }
+        } else if (statistics != null) {
+            statistics.addCacheHit();
+        }
+        //the object number tells the forms apart, whichever images they come from
+        String name = "Fx" + form.getObjectNumber();
+        PDFDictionary xobjects = (PDFDictionary) targetPage.getPDFResources().get("XObject");
+        if (xobjects == null) {
+            xobjects = new PDFDictionary(targetPage.getPDFResources());
+            targetPage.getPDFResources().put("XObject", xobjects);
+        }
+        xobjects.put(name, form);
 
         PDRectangle mediaBox = page.getMediaBox();
         PDRectangle cropBox = page.getCropBox();
         PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
+        String stream = placePage(mediaBox, viewBox, PDFUtil.getNormalizedRotation(page), atdoc, pos)
+                + "/" + name + " Do\n";
+        recordContent(stream.length());
+        return stream;
+    }
 
-        //Handle the /Rotation entry on the page dict
-        int rotation = PDFUtil.getNormalizedRotation(page);
+    /** records the length of the content of the page, objects cloned afterwards belong to its logical structure */
+    private void recordContent(long length) {
+        if (statistics != null) {
+            statistics.addObject(ImportStatistics.Category.CONTENT, length);
+            statisticsCategory = ImportStatistics.Category.STRUCTURE;
+        }
+    }
+
+    private void updatePageNumbers() {
+        if (pageNumbers.containsKey(targetPage.getPageIndex())) {
+            pageNumbers.get(targetPage.getPageIndex()).set(0, targetPage.makeReference());
+        }
+    }
 
+    /**
+     * Sets up the transformation of an imported page.
+     * @return the operators clipping the content to the media box, to be placed before it
+     */
+    private String placePage(PDRectangle mediaBox, PDRectangle viewBox, int rotation,
+                             AffineTransform atdoc, Rectangle pos) {
         //Transform to FOP's user space
         float w = (float)pos.getWidth() / 1000f;
         float h = (float)pos.getHeight() / 1000f;
@@ -446,7 +1118,7 @@ public class PDFBoxAdapter {
                 .append(PDFNumber.doubleOut(mediaBox.getLowerLeftY())).append(' ')
                 .append(PDFNumber.doubleOut(mediaBox.getWidth())).append(' ')
                 .append(PDFNumber.doubleOut(mediaBox.getHeight())).append(" re W n\n");
-        return boxStr.toString() + IOUtils.toString(pdStream.createInputStream(null), "ISO-8859-1");
+        return boxStr.toString();
     }
 
     private void rotate(int rotation, PDRectangle viewBox, AffineTransform atdoc) {
@@ -475,12 +1147,19 @@ public class PDFBoxAdapter {
         }
     }
 
-    private PDStream getContents(PDPage page) throws IOException {
-        PDStream pdStream = new PDStream(new COSStream());
-        OutputStream os = pdStream.createOutputStream();
-        IOUtils.copy(page.getContents(), os);
-        os.close();
-        return pdStream;
+    /** @return the decoded content of the page, prefetched or read now */
+    private byte[] getContents(PDPage page) throws IOException {
+        byte[] contents = pageContents;
+        if (contents != null) {
+            pageContents = null;
+            return contents;
+        }
+        InputStream in = page.getContents();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
     }
 
     private void mergeXObj(COSDictionary sourcePageResources, FontInfo fontinfo, UniqueName uniqueName)
@@ -536,7 +1215,134 @@ public class PDFBoxAdapter {
         }
     }
 
-    private void transferPageDict(COSDictionary fonts, UniqueName uniqueName, PDResources sourcePageResources)
+    /**
+     * Returns the part of the page resources which is referenced by the page content. Many
+     * documents share one resource dictionary across all pages, so cloning it as a whole would
+     * copy the resources of every page into the output. Names used by form XObjects, tiling
+     * patterns and Type 3 fonts which inherit the page resources are followed transitively.
+     * Fonts are kept as a whole if fonts are merged since the merged form XObjects refer to the
+     * page fonts.
+     * @param resources the page resources
+     * @param usedNames the names used as operands by the page content
+     * @return a dictionary with the referenced resources
+     */
+    private COSDictionary getUsedResources(COSDictionary resources, Set<COSName> usedNames) throws IOException {
+        Set<COSName> names = new HashSet<COSName>(usedNames);
+        List<COSName> pending = new ArrayList<COSName>(names);
+        while (!pending.isEmpty()) {
+            COSName name = pending.remove(pending.size() - 1);
+            for (COSName category : NAMED_RESOURCES) {
+                COSBase dict = resources.getDictionaryObject(category);
+                if (dict instanceof COSDictionary) {
+                    COSBase resource = ((COSDictionary) dict).getDictionaryObject(name);
+                    for (COSStream content : getInheritingContents(resource)) {
+                        for (COSName used : getNames(content)) {
+                            if (names.add(used)) {
+                                pending.add(used);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        COSDictionary used = new COSDictionary();
+        for (Map.Entry<COSName, COSBase> e : resources.entrySet()) {
+            COSBase value = e.getValue();
+            if (value instanceof COSObject) {
+                value = ((COSObject) value).getObject();
+            }
+            if (!NAMED_RESOURCES.contains(e.getKey()) || !(value instanceof COSDictionary)
+                    || (e.getKey().equals(COSName.FONT) && pdfDoc.isMergeFontsEnabled())) {
+                used.setItem(e.getKey(), e.getValue());
+            } else {
+                COSDictionary subset = new COSDictionary();
+                for (Map.Entry<COSName, COSBase> r : ((COSDictionary) value).entrySet()) {
+                    if (names.contains(r.getKey())) {
+                        subset.setItem(r.getKey(), r.getValue());
+                    }
+                }
+                used.setItem(e.getKey(), subset);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Clones the resources returned by {@link #getUsedResources(COSDictionary, Set)}. The
+     * dictionary and the subsets of the named resource categories are made for one page only,
+     * so they are not recorded in the clone cache; the resources they refer to are.
+     * @param resources the page resources
+     * @param used the referenced resources
+     * @return the clone
+     */
+    private PDFDictionary cloneUsedResources(COSDictionary resources, COSDictionary used) throws IOException {
+        PDFDictionary clone = new PDFDictionary();
+        for (Map.Entry<COSName, COSBase> e : used.entrySet()) {
+            COSBase value = e.getValue();
+            if (value == resources.getItem(e.getKey())) {
+                clone.put(e.getKey().getName(), cloneForNewDocument(value));
+            } else {
+                PDFDictionary subset = new PDFDictionary();
+                for (Map.Entry<COSName, COSBase> r : ((COSDictionary) value).entrySet()) {
+                    subset.put(r.getKey().getName(), cloneForNewDocument(r.getValue()));
+                }
+                clone.put(e.getKey().getName(), subset);
+            }
+        }
+        return clone;
+    }
+
+    /** content streams of a resource which use the page resources as they have none of their own */
+    private List<COSStream> getInheritingContents(COSBase resource) {
+        List<COSStream> contents = new ArrayList<COSStream>();
+        if (resource instanceof COSDictionary && !((COSDictionary) resource).containsKey(COSName.RESOURCES)) {
+            COSDictionary dict = (COSDictionary) resource;
+            if (resource instanceof COSStream
+                    && (COSName.FORM.equals(dict.getCOSName(COSName.SUBTYPE)) || dict.getInt(COSName.PATTERN_TYPE) == 1)) {
+                contents.add((COSStream) resource);
+            } else if (COSName.TYPE3.equals(dict.getCOSName(COSName.SUBTYPE))) {
+                COSBase charProcs = dict.getDictionaryObject(COSName.CHAR_PROCS);
+                if (charProcs instanceof COSDictionary) {
+                    for (COSBase proc : ((COSDictionary) charProcs).getValues()) {
+                        if (proc instanceof COSObject) {
+                            proc = ((COSObject) proc).getObject();
+                        }
+                        if (proc instanceof COSStream) {
+                            contents.add((COSStream) proc);
+                        }
+                    }
+                }
+            }
+        }
+        return contents;
+    }
+
+    /** names used as operands by a content stream */
+    private Set<COSName> getNames(COSStream content) throws IOException {
+        PDFStreamParser parser = new PDFStreamParser(content);
+        Set<COSName> names = new HashSet<COSName>();
+        //only the operands being looked into are kept, not the tokens of the whole stream
+        List<Object> pending = new ArrayList<Object>();
+        Object next;
+        while ((next = parser.parseNextToken()) != null) {
+            pending.add(next);
+            while (!pending.isEmpty()) {
+                Object token = pending.remove(pending.size() - 1);
+                if (token instanceof COSName) {
+                    names.add((COSName) token);
+                } else if (token instanceof COSArray) {
+                    pending.addAll(((COSArray) token).toList());
+                } else if (token instanceof COSDictionary) {
+                    pending.addAll(((COSDictionary) token).getValues());
+                } else if (token instanceof Operator && ((Operator) token).getImageParameters() != null) {
+                    pending.addAll(((Operator) token).getImageParameters().getValues());
+                }
+            }
+        }
+        return names;
+    }
+
+    private void transferPageDict(COSDictionary fonts, UniqueName uniqueName, COSDictionary sourcePageResources)
         throws IOException {
         if (fonts != null) {
             for (Map.Entry<COSName, COSBase> f : fonts.entrySet()) {
@@ -544,7 +1350,7 @@ public class PDFBoxAdapter {
                 targetPage.getPDFResources().addFont(name, (PDFDictionary)cloneForNewDocument(f.getValue()));
             }
         }
-        for (Map.Entry<COSName, COSBase> e : sourcePageResources.getCOSObject().entrySet()) {
+        for (Map.Entry<COSName, COSBase> e : sourcePageResources.entrySet()) {
             transferDict(e, uniqueName);
         }
     }
@@ -19,6 +19,9 @@
 
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import org.apache.pdfbox.pdmodel.PDPage;
 
 /**
@@ -36,7 +39,16 @@ public final class PDFUtil {
      */
     public static int getNormalizedRotation(PDPage page) {
         //Handle the /Rotation entry on the page dict
-        int rotation = page.getRotation();
+        return getNormalizedRotation(page.getRotation());
+    }
+
+    /**
+     * Normalizes a page rotation to the values 0, 90, 180 and 270. If not a multiple of 90
+     * is encountered, 0 is returned.
+     * @param rotation the value of the /Rotate entry of a page
+     * @return the page rotation (0, 90, 180 or 270)
+     */
+    public static int getNormalizedRotation(int rotation) {
         rotation %= 360;
         if (rotation < 0) {
             rotation += 360;
@@ -51,4 +63,30 @@ public final class PDFUtil {
         }
     }
 
+    /**
+     * Creates a SHA-1 message digest, which every Java platform is required to support.
+     * @return the message digest
+     */
+    public static MessageDigest createSHA1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the hexadecimal representation of a byte array, e.g. of a digest.
+     * @param bytes the bytes
+     * @return the hexadecimal string (lower case)
+     */
+    public static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
 }
@@ -16,14 +16,18 @@
  */
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.pdfbox.contentstream.operator.Operator;
 import org.apache.pdfbox.cos.COSArray;
@@ -38,10 +42,21 @@ import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdmodel.common.PDStream;
 
 
+/**
+ * Rewrites a content stream with the resource names made unique and the marked content IDs
+ * shifted. The content is parsed token by token and written operation by operation, so only
+ * the operation being rewritten is kept in memory: {@link #s} holds its text and is written
+ * out and cleared after each operator.
+ */
 public class PDFWriter {
+    /** the text of the operation being rewritten */
     protected StringBuilder s = new StringBuilder();
     protected UniqueName key;
     private int currentMCID;
+    /** names used as operands, a superset of the resources referenced by the content */
+    private Set<COSName> usedNames = new HashSet<COSName>();
+    private final DecimalFormat decimalFormat = new DecimalFormat("#.####", new DecimalFormatSymbols(Locale.US));
+    private final byte[] buffer = new byte[8192];
 
     public PDFWriter(UniqueName key, int currentMCID) {
         this.key = key;
@@ -49,15 +64,45 @@ public class PDFWriter {
     }
 
     public String writeText(PDStream pdStream) throws IOException {
-        PDFStreamParser pdfStreamParser = new PDFStreamParser(pdStream);
-        pdfStreamParser.parse();
-        List<Object> it = pdfStreamParser.getTokens();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeText(pdStream, out);
+        return out.toString("ISO-8859-1");
+    }
+
+    /**
+     * Rewrites a content stream.
+     * @param pdStream the content stream
+     * @param out the stream to write the rewritten content to, as ISO-8859-1
+     * @throws IOException if the content cannot be parsed or written
+     */
+    public void writeText(PDStream pdStream, OutputStream out) throws IOException {
+        writeText(new PDFStreamParser(pdStream), out);
+    }
+
+    /**
+     * Rewrites decoded content.
+     * @param content the decoded content
+     * @param out the stream to write the rewritten content to, as ISO-8859-1
+     * @throws IOException if the content cannot be parsed or written
+     */
+    public void writeText(byte[] content, OutputStream out) throws IOException {
+        writeText(new PDFStreamParser(content), out);
+    }
+
+    /**
+     * Rewrites the content read by a parser.
+     * @param pdfStreamParser the parser of the content
+     * @param out the stream to write the rewritten content to, as ISO-8859-1
+     * @throws IOException if the content cannot be parsed or written
+     */
+    protected void writeText(PDFStreamParser pdfStreamParser, OutputStream out) throws IOException {
         List<COSBase> arguments = new ArrayList<COSBase>();
-        for (Object o : it) {
+        Object o;
+        while ((o = pdfStreamParser.parseNextToken()) != null) {
             if (o instanceof Operator) {
                 Operator op = (Operator)o;
                 readPDFArguments(op, arguments);
-                s.append(op.getName() + "\n");
+                s.append(op.getName()).append('\n');
                 arguments.clear();
                 if (op.getImageParameters() != null) {
                     for (Map.Entry<COSName, COSBase> cn : op.getImageParameters().entrySet()) {
@@ -65,15 +110,31 @@ public class PDFWriter {
                         arguments.add(cn.getValue());
                     }
                     readPDFArguments(op, arguments);
-                    s.append("ID " + new String(op.getImageData(), "ISO-8859-1"));
+                    s.append("ID ");
+                    flush(out);
+                    out.write(op.getImageData());
                     arguments.clear();
                     s.append("EI\n");
                 }
+                flush(out);
             } else {
                 arguments.add((COSBase)o);
             }
         }
-        return s.toString();
+    }
+
+    /** writes and clears the text of the operation rewritten */
+    private void flush(OutputStream out) throws IOException {
+        int length = s.length();
+        for (int start = 0; start < length; start += buffer.length) {
+            int n = Math.min(buffer.length, length - start);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(start + i);
+                buffer[i] = c < 256 ? (byte) c : (byte) '?';
+            }
+            out.write(buffer, 0, n);
+        }
+        s.setLength(0);
     }
 
     protected void readPDFArguments(Operator op, Collection<COSBase> arguments) throws IOException {
@@ -88,11 +149,11 @@ public class PDFWriter {
             s.append(" ");
         } else if (c instanceof COSFloat) {
             float f = ((COSFloat) c).floatValue();
-            s.append(new DecimalFormat("#.####", new DecimalFormatSymbols(Locale.US)).format(f));
+            s.append(decimalFormat.format(f));
             s.append(" ");
         } else if (c instanceof COSName) {
             COSName cn = (COSName)c;
-            s.append("/" + key.getName(cn));
+            s.append("/" + getResourceName(cn));
             s.append(" ");
         } else if (c instanceof COSString) {
             s.append("<" + ((COSString) c).toHexString() + ">");
@@ -136,6 +197,21 @@ public class PDFWriter {
         dictArgs.add(updatedID);
     }
 
+    /**
+     * Returns the name under which a name operand is written and records its use.
+     * @param cn the name in the source content
+     * @return the name in the written content
+     */
+    protected String getResourceName(COSName cn) {
+        usedNames.add(cn);
+        return key.getName(cn);
+    }
+
+    /** @return the names used as operands by the content written so far */
+    protected Set<COSName> getUsedNames() {
+        return usedNames;
+    }
+
     protected int getCurrentMCID() {
         return currentMCID;
     }
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * The boxes and the rotation of a single PDF page, i.e. everything needed to compute the
+ * intrinsic size of a page without loading its content.
+ */
+public final class PageGeometry {
+
+    private final PDRectangle mediaBox;
+    private final PDRectangle cropBox;
+    private final int rotation;
+
+    /**
+     * Creates a new page geometry.
+     * @param mediaBox the media box
+     * @param cropBox the crop box (may be null)
+     * @param rotation the value of the /Rotate entry
+     */
+    public PageGeometry(PDRectangle mediaBox, PDRectangle cropBox, int rotation) {
+        this.mediaBox = mediaBox;
+        this.cropBox = cropBox;
+        this.rotation = rotation;
+    }
+
+    /**
+     * Creates the geometry of a loaded page.
+     * @param page the page
+     */
+    public PageGeometry(PDPage page) {
+        this(page.getMediaBox(), page.getCropBox(), page.getRotation());
+    }
+
+    /** @return the media box */
+    public PDRectangle getMediaBox() {
+        return mediaBox;
+    }
+
+    /** @return the crop box (may be null) */
+    public PDRectangle getCropBox() {
+        return cropBox;
+    }
+
+    /** @return the value of the /Rotate entry */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /** @return the visible area of the page, i.e. the crop box if available or the media box */
+    public PDRectangle getViewBox() {
+        return cropBox != null ? cropBox : mediaBox;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * On-disk index of the page geometry of PDF files. Each file is keyed by its canonical path,
+ * its modification time and its length, so an index entry is never used for a file that has
+ * changed since it was recorded. Each entry is stored in a file of its own so that several
+ * processes can share the index directory.
+ */
+public final class PageGeometryIndex {
+
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(PageGeometryIndex.class);
+
+    private static final int MAGIC = 0x46504749;
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".geom";
+
+    private final File directory;
+
+    /**
+     * Creates an index stored in the given directory. The directory is created if necessary.
+     * @param directory the index directory
+     */
+    public PageGeometryIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the recorded page geometry of a PDF file.
+     * @param pdf the PDF file
+     * @return the page geometry or null if none has been recorded for the current version of the file
+     */
+    public DocumentGeometry get(File pdf) {
+        String key;
+        File entry;
+        try {
+            key = createKey(pdf);
+            entry = getEntryFile(key);
+        } catch (IOException ioe) {
+            log.debug("Cannot build index key for " + pdf + ": " + ioe.getMessage());
+            return null;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int pageCount = in.readInt();
+            List<PageGeometry> pages = new ArrayList<PageGeometry>(pageCount);
+            for (int i = 0; i < pageCount; i++) {
+                PDRectangle mediaBox = readRectangle(in);
+                PDRectangle cropBox = readRectangle(in);
+                pages.add(new PageGeometry(mediaBox, cropBox, in.readInt()));
+            }
+            return new DocumentGeometry(pages);
+        } catch (IOException ioe) {
+            log.warn("Ignoring unreadable page geometry index entry " + entry + ": " + ioe.getMessage());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Records the page geometry of a PDF file.
+     * @param pdf the PDF file
+     * @param geometry its page geometry
+     * @throws IOException if the entry cannot be written
+     */
+    public void put(File pdf, DocumentGeometry geometry) throws IOException {
+        String key = createKey(pdf);
+        File entry = getEntryFile(key);
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create page geometry index directory " + directory);
+        }
+        //write to a temporary file first so that readers never see a partial entry
+        File temp = File.createTempFile("geom", ".tmp", directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(geometry.getPageCount());
+            for (int i = 0; i < geometry.getPageCount(); i++) {
+                PageGeometry page = geometry.getPage(i);
+                writeRectangle(out, page.getMediaBox());
+                writeRectangle(out, page.getViewBox());
+                out.writeInt(page.getRotation());
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        if (!temp.renameTo(entry)) {
+            //another process may have recorded the same file in the meantime
+            entry.delete();
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+                throw new IOException("Cannot write page geometry index entry " + entry);
+            }
+        }
+    }
+
+    private String createKey(File pdf) throws IOException {
+        return pdf.getCanonicalPath() + '\n' + pdf.lastModified() + '\n' + pdf.length();
+    }
+
+    private File getEntryFile(String key) throws IOException {
+        byte[] hash = PDFUtil.createSHA1Digest().digest(key.getBytes("UTF-8"));
+        return new File(directory, PDFUtil.toHexString(hash) + SUFFIX);
+    }
+
+    private PDRectangle readRectangle(DataInputStream in) throws IOException {
+        PDRectangle rect = new PDRectangle();
+        rect.setLowerLeftX(in.readFloat());
+        rect.setLowerLeftY(in.readFloat());
+        rect.setUpperRightX(in.readFloat());
+        rect.setUpperRightY(in.readFloat());
+        return rect;
+    }
+
+    private void writeRectangle(DataOutputStream out, PDRectangle rect) throws IOException {
+        out.writeFloat(rect.getLowerLeftX());
+        out.writeFloat(rect.getLowerLeftY());
+        out.writeFloat(rect.getUpperRightX());
+        out.writeFloat(rect.getUpperRightY());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.RandomAccessBufferedFileInputStream;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ * Reads the page geometry of a PDF file without loading the document. Only the
+ * cross-reference table, the trailer and the objects of the page tree are parsed, while
+ * {@link org.apache.pdfbox.pdmodel.PDDocument#load(File)} parses every object reachable
+ * from the document catalog.
+ */
+public final class PageGeometryProbe extends PDFParser {
+
+    private PageGeometryProbe(RandomAccessRead source) throws IOException {
+        super(source);
+    }
+
+    /**
+     * Reads the page geometry of a PDF file.
+     * @param file the PDF file
+     * @return the geometry of all pages
+     * @throws IOException if the file cannot be read or the page tree is broken
+     */
+    public static DocumentGeometry probe(File file) throws IOException {
+        RandomAccessRead source = new RandomAccessBufferedFileInputStream(file);
+        try {
+            PageGeometryProbe probe = new PageGeometryProbe(source);
+            try {
+                return probe.readGeometry();
+            } finally {
+                probe.getDocument().close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private DocumentGeometry readGeometry() throws IOException {
+        if (!parsePDFHeader()) {
+            throw new IOException("Error: Header doesn't contain versioninfo");
+        }
+        COSDictionary trailer = parseXref(getStartxrefOffset());
+        if (trailer == null) {
+            throw new IOException("Missing trailer");
+        }
+        COSDictionary catalog = resolveDictionary(trailer.getItem(COSName.ROOT));
+        COSDictionary pageTree = resolveDictionary(catalog.getItem(COSName.PAGES));
+        List<PageGeometry> pages = new ArrayList<PageGeometry>();
+        collectPages(pageTree, null, null, 0, pages, new IdentityHashMap<COSDictionary, Object>());
+        return new DocumentGeometry(pages);
+    }
+
+    private void collectPages(COSDictionary node, PDRectangle mediaBox, COSArray cropBox, int rotation,
+                              List<PageGeometry> pages, Map<COSDictionary, Object> visited) throws IOException {
+        if (visited.put(node, node) != null) {
+            throw new IOException("Loop in page tree");
+        }
+        //MediaBox, CropBox and Rotate are inheritable
+        COSBase base = resolve(node.getItem(COSName.MEDIA_BOX));
+        if (base instanceof COSArray) {
+            mediaBox = toRectangle((COSArray) base);
+        }
+        base = resolve(node.getItem(COSName.CROP_BOX));
+        if (base instanceof COSArray) {
+            cropBox = (COSArray) base;
+        }
+        base = resolve(node.getItem(COSName.ROTATE));
+        if (base instanceof COSNumber) {
+            rotation = ((COSNumber) base).intValue();
+        }
+        base = resolve(node.getItem(COSName.KIDS));
+        if (base instanceof COSArray) {
+            COSArray kids = (COSArray) base;
+            for (int i = 0; i < kids.size(); i++) {
+                collectPages(resolveDictionary(kids.get(i)), mediaBox, cropBox, rotation, pages, visited);
+            }
+        } else {
+            if (mediaBox == null) {
+                //same default as PDPage.getMediaBox()
+                mediaBox = PDRectangle.LETTER;
+            }
+            pages.add(new PageGeometry(mediaBox,
+                    cropBox != null ? clipToMediaBox(toRectangle(cropBox), mediaBox) : mediaBox, rotation));
+        }
+    }
+
+    private PDRectangle toRectangle(COSArray array) throws IOException {
+        float[] values = new float[4];
+        for (int i = 0; i < values.length && i < array.size(); i++) {
+            COSBase value = resolve(array.get(i));
+            if (value instanceof COSNumber) {
+                values[i] = ((COSNumber) value).floatValue();
+            }
+        }
+        //normalize like PDRectangle(COSArray) does
+        PDRectangle rect = new PDRectangle();
+        rect.setLowerLeftX(Math.min(values[0], values[2]));
+        rect.setLowerLeftY(Math.min(values[1], values[3]));
+        rect.setUpperRightX(Math.max(values[0], values[2]));
+        rect.setUpperRightY(Math.max(values[1], values[3]));
+        return rect;
+    }
+
+    private PDRectangle clipToMediaBox(PDRectangle box, PDRectangle mediaBox) {
+        PDRectangle result = new PDRectangle();
+        result.setLowerLeftX(Math.max(mediaBox.getLowerLeftX(), box.getLowerLeftX()));
+        result.setLowerLeftY(Math.max(mediaBox.getLowerLeftY(), box.getLowerLeftY()));
+        result.setUpperRightX(Math.min(mediaBox.getUpperRightX(), box.getUpperRightX()));
+        result.setUpperRightY(Math.min(mediaBox.getUpperRightY(), box.getUpperRightY()));
+        return result;
+    }
+
+    private COSDictionary resolveDictionary(COSBase base) throws IOException {
+        COSBase object = resolve(base);
+        if (!(object instanceof COSDictionary)) {
+            throw new IOException("Expected a dictionary in the page tree, found: " + object);
+        }
+        return (COSDictionary) object;
+    }
+
+    private COSBase resolve(COSBase base) throws IOException {
+        if (base instanceof COSObject) {
+            COSObject obj = (COSObject) base;
+            COSBase object = obj.getObject();
+            if (object == null) {
+                object = parseObjectDynamically(obj, false);
+            }
+            return object;
+        }
+        return base;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Decodes the contents of the pages following the one being imported in the background, so
+ * that decompression overlaps with FOP's layout and rendering when several pages of a PDF are
+ * used. Enabled by setting the system property <code>fop.pdfbox.preloader-prefetch</code> to
+ * the number of pages to prefetch; <code>fop.pdfbox.preloader-prefetch.threads</code> sets
+ * the number of background threads (default: 1).
+ */
+final class PagePrefetcher {
+
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(PagePrefetcher.class);
+
+    /** number of pages prefetched after the current one, 0 disables prefetching */
+    private static final int PREFETCH_PAGES = Integer.getInteger("fop.pdfbox.preloader-prefetch", 0);
+
+    private static final int PREFETCH_THREADS = Math.max(1,
+            Integer.getInteger("fop.pdfbox.preloader-prefetch.threads", 1));
+
+    /** maximum number of queued prefetches, further ones are dropped */
+    private static final int MAX_QUEUED = 64;
+
+    private static ThreadPoolExecutor executor;
+
+    private PagePrefetcher() { }
+
+    /** @return true if prefetching is enabled */
+    static boolean isEnabled() {
+        return PREFETCH_PAGES > 0;
+    }
+
+    /**
+     * Schedules the decoding of the contents of the pages following the given one. At most
+     * as many pages as configured are kept prefetched per document.
+     * @param handle the document handle, the caller must hold a reference to it
+     * @param pageIndex the index of the current page
+     */
+    static void prefetch(final DocumentHandle handle, int pageIndex) {
+        if (!isEnabled()) {
+            return;
+        }
+        int pageCount = handle.getDocument().getNumberOfPages();
+        int last = Math.min(pageIndex + PREFETCH_PAGES, pageCount - 1);
+        for (int i = pageIndex + 1; i <= last; i++) {
+            if (handle.getPrefetchedContents().size() >= PREFETCH_PAGES) {
+                break;
+            }
+            final int page = i;
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return decodeContents(handle, page);
+                }
+            });
+            if (handle.getPrefetchedContents().putIfAbsent(page, task) == null) {
+                submit(handle, page, task);
+            }
+        }
+    }
+
+    private static void submit(final DocumentHandle handle, int page, final FutureTask<byte[]> task) {
+        //keep the document open until the prefetch has run
+        if (!handle.tryRetain()) {
+            handle.getPrefetchedContents().remove(page, task);
+            return;
+        }
+        try {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        handle.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            handle.getPrefetchedContents().remove(page, task);
+            handle.release();
+        }
+    }
+
+    private static byte[] decodeContents(DocumentHandle handle, int page) throws Exception {
+        handle.getLock().lock();
+        try {
+            PDDocument pddoc = handle.getDocument();
+            InputStream in = pddoc.getPage(page).getContents();
+            try {
+                return IOUtils.toByteArray(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        } catch (Exception e) {
+            log.debug("Could not prefetch page " + page + ": " + e.getMessage());
+            throw e;
+        } finally {
+            handle.getLock().unlock();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new PrefetchThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return executor;
+    }
+
+    private static final class PrefetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "fop-pdf-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Set;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+
+/**
+ * Pre-warmed tier of PDF documents which are used by nearly every document produced, such as
+ * letterheads and forms. Pinned documents are parsed once, e.g. at startup, shared by all FOP
+ * factories in the JVM and never evicted from the preloader's caches, whatever their type.
+ * <p>
+ * The documents can also be listed in a configuration element, e.g. in the FOP configuration
+ * file, and passed to {@link #configure(Configuration, URI)}:
+ * <pre>
+ * &lt;pdf-images&gt;
+ *   &lt;pinned-document uri="templates/letterhead.pdf"/&gt;
+ *   &lt;pinned-document uri="templates/invoice-form.pdf"/&gt;
+ * &lt;/pdf-images&gt;
+ * </pre>
+ */
+public final class PinnedDocuments {
+
+    private PinnedDocuments() { }
+
+    /**
+     * Loads a PDF document and pins it. Pinning a URI again reloads the document, unless
+     * documents are keyed by content and a document with the same content is pinned already.
+     * @param uri the absolute URI of the document
+     * @throws IOException if the document cannot be loaded
+     */
+    public static void pin(URI uri) throws IOException {
+        URI docURI = normalize(uri);
+        File file = PreloaderPDF.getLocalFile(docURI);
+        StreamSource src;
+        if (file != null) {
+            //local files are read by the preloader directly
+            src = new StreamSource(file);
+        } else {
+            src = new StreamSource(docURI.toURL().openStream(), docURI.toString());
+        }
+        PreloaderPDF.pinDocument(docURI, src);
+    }
+
+    /**
+     * Unpins a PDF document. The document is closed once it is no longer used and, if
+     * documents are keyed by content, no other URI with the same content is pinned.
+     * @param uri the URI of the document, as passed to {@link #pin(URI)}
+     * @return true if the document was pinned
+     */
+    public static boolean unpin(URI uri) {
+        return PreloaderPDF.unpinDocument(normalize(uri));
+    }
+
+    /**
+     * Unpins all PDF documents.
+     */
+    public static void unpinAll() {
+        for (URI uri : getPinnedURIs().toArray(new URI[0])) {
+            PreloaderPDF.unpinDocument(uri);
+        }
+    }
+
+    /** @return the URIs of the pinned documents */
+    public static Set<URI> getPinnedURIs() {
+        return PreloaderPDF.getPinnedURIs();
+    }
+
+    /**
+     * Pins the documents listed by the <code>pinned-document</code> children of the given
+     * configuration element.
+     * @param cfg the configuration element
+     * @param baseURI the URI relative document URIs are resolved against (may be null)
+     * @throws ConfigurationException if a document URI is missing or invalid
+     * @throws IOException if a document cannot be loaded
+     */
+    public static void configure(Configuration cfg, URI baseURI) throws ConfigurationException, IOException {
+        for (Configuration child : cfg.getChildren("pinned-document")) {
+            String value = child.getAttribute("uri");
+            URI uri;
+            try {
+                uri = new URI(value);
+            } catch (URISyntaxException e) {
+                throw new ConfigurationException("Invalid pinned document URI: " + value, child, e);
+            }
+            if (baseURI != null) {
+                uri = baseURI.resolve(uri);
+            }
+            if (!uri.isAbsolute()) {
+                throw new ConfigurationException("Pinned document URI is not absolute: " + uri, child);
+            }
+            pin(uri);
+        }
+    }
+
+    /** file URIs are brought into the form the image loading framework resolves them to */
+    private static URI normalize(URI uri) {
+        File file = PreloaderPDF.getLocalFile(uri);
+        return file != null ? file.getAbsoluteFile().toURI() : uri;
+    }
+}
@@ -19,18 +19,39 @@
 
 package org.apache.fop.render.pdf.pdfbox;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.imageio.stream.ImageInputStream;
 import javax.xml.transform.Source;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
@@ -38,6 +59,7 @@ import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.xmlgraphics.image.loader.ImageContext;
 import org.apache.xmlgraphics.image.loader.ImageException;
 import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
 import org.apache.xmlgraphics.image.loader.ImageSize;
 import org.apache.xmlgraphics.image.loader.impl.AbstractImagePreloader;
 import org.apache.xmlgraphics.image.loader.util.ImageUtil;
@@ -51,17 +73,78 @@ import org.apache.fop.render.pdf.pdfbox.Cache.ValueMaker;
  */
 public class PreloaderPDF extends AbstractImagePreloader {
 
+    /** logging instance */
+    private static final Log log = LogFactory.getLog(PreloaderPDF.class);
+
     /** PDF header text */
     private static final String PDF_HEADER = "%PDF-";
 
-    /** static PDDocument cache for faster multi-page processing */
-    private static final Cache.Type CACHE_TYPE = Cache.Type.valueOf(
-            System.getProperty("fop.pdfbox.preloader-cache", Cache.Type.WEAK.name()).toUpperCase(Locale.ENGLISH));
+    /**
+     * if true, the preloader only reads the page tree of local files to determine the image
+     * size and the document is loaded when the image is actually needed
+     */
+    private static final boolean PROBE_GEOMETRY = Boolean.getBoolean("fop.pdfbox.preloader-probe");
+
+    /**
+     * optional on-disk index of the page geometry of local files, consulted before the page
+     * tree is probed or the document is loaded
+     */
+    private static final PageGeometryIndex GEOMETRY_INDEX = createGeometryIndex();
+
+    private static final Cache.Weigher<DocumentHandle> DOCUMENT_WEIGHER = new Cache.Weigher<DocumentHandle>() {
+        public long weigh(DocumentHandle value) {
+            return value.getSize();
+        }
+    };
+
+    /**
+     * the document caches hold one reference to each document, the images created from it
+     * hold further ones, so a document dropped from a cache stays open until it is no longer used
+     */
+    private static Map<Object, Cache<Object, DocumentHandle>> documentCacheMap
+            = Collections.synchronizedMap(new WeakHashMap<Object, Cache<Object, DocumentHandle>>());
+
+    /** document cache policies set for individual image contexts, see {@link DocumentCachePolicy} */
+    private static final Map<Object, DocumentCachePolicy> CACHE_POLICIES
+            = new WeakHashMap<Object, DocumentCachePolicy>();
+
+    /** document caches shared by all image contexts with an equal policy */
+    private static final Map<DocumentCachePolicy, Cache<Object, DocumentHandle>> SHARED_DOCUMENT_CACHES
+            = new HashMap<DocumentCachePolicy, Cache<Object, DocumentHandle>>();
+
+    /**
+     * if true, documents are cached by the digest of their bytes instead of their URI, so
+     * that all URIs resolving to the same content share one document
+     */
+    private static final boolean DIGEST_KEYS = "digest".equalsIgnoreCase(
+            System.getProperty("fop.pdfbox.preloader-cache.key", "uri"));
+
+    /** pinned documents by cache key, see {@link PinnedDocuments} */
+    private static final ConcurrentMap<Object, DocumentHandle> PINNED_DOCUMENTS
+            = new ConcurrentHashMap<Object, DocumentHandle>();
+
+    /** cache keys of the pinned documents by the URI they have been pinned with */
+    private static final ConcurrentMap<URI, Object> PINNED_URIS = new ConcurrentHashMap<URI, Object>();
+
+    /** maximum number of URIs whose digest is remembered */
+    private static final int MAX_DIGEST_ALIASES = 1024;
+
+    /**
+     * digests of the documents by URI, so they are not read again: as long as they are
+     * unchanged for local files, for as long as they are remembered for other URIs
+     */
+    private static final Map<URI, DigestAlias> DIGEST_ALIASES = Collections.synchronizedMap(
+            new LinkedHashMap<URI, DigestAlias>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<URI, DigestAlias> eldest) {
+                    return size() > MAX_DIGEST_ALIASES;
+                }
+            });
 
-    private static Map<Object, Cache<URI, PDDocument>> documentCacheMap
-            = Collections.synchronizedMap(new WeakHashMap<Object, Cache<URI, PDDocument>>());
-    //the cache here can cause problems because PDDocument that have been closed might still
-    //be accessed. Example: java.io.IOException: The handle is invalid
+    /** locks of the URIs whose digest is being determined by loading their document */
+    private static final ConcurrentMap<URI, Object> DIGESTING_URIS = new ConcurrentHashMap<URI, Object>();
 
     /** {@inheritDoc} */
     public ImageInfo preloadImage(String uri, Source src, ImageContext context)
@@ -105,28 +188,118 @@ public class PreloaderPDF extends AbstractImagePreloader {
 
         URI docURI = deriveDocumentURI(src.getSystemId());
 
-        PDDocument pddoc = getDocument(context, docURI, src);
-        pddoc = Interceptors.getInstance().interceptOnLoad(pddoc, docURI);
+        boolean indexed = true;
+        if ((PROBE_GEOMETRY || GEOMETRY_INDEX != null) && !isCached(context, docURI)) {
+            DocumentGeometry geometry = null;
+            if (GEOMETRY_INDEX != null) {
+                geometry = lookupGeometry(docURI);
+                indexed = geometry != null || getLocalFile(docURI) == null;
+            }
+            if (geometry == null && PROBE_GEOMETRY) {
+                geometry = probeGeometry(docURI);
+                if (geometry != null && !indexed) {
+                    indexGeometry(docURI, geometry);
+                }
+            }
+            if (geometry != null) {
+                //the document itself is loaded by ImageLoaderPDF once the image is needed
+                ImageUtil.closeQuietly(src);
+                int pageCount = geometry.getPageCount();
+                return createImageInfo(uri, selectedPage, pageCount,
+                        selectedPage >= 0 && selectedPage < pageCount ? geometry.getPage(selectedPage) : null, context);
+            }
+        }
+
+        DocumentHandle handle = getDocument(context, docURI, src);
+        //the document may be shared with pages being placed by other threads
+        handle.getLock().lock();
+        try {
+            return createImageInfoFromDocument(uri, selectedPage, docURI, handle, indexed, context);
+        } finally {
+            handle.getLock().unlock();
+            handle.release();
+        }
+    }
 
-        //Disable the warning about a missing close since we rely on the GC to decide when
-        //the cached PDF shall be disposed off.
-        pddoc.getDocument().setWarnMissingClose(false);
+    private ImageInfo createImageInfoFromDocument(String uri, int selectedPage, URI docURI, DocumentHandle handle,
+            boolean indexed, ImageContext context) throws IOException, ImageException {
+        PDDocument pddoc = Interceptors.getInstance().interceptOnLoad(handle.getDocument(), docURI);
 
         int pageCount = pddoc.getNumberOfPages();
-        if (selectedPage < 0 || selectedPage >= pageCount) {
+        PageGeometry page = null;
+        if (selectedPage >= 0 && selectedPage < pageCount) {
+            page = new PageGeometry(pddoc.getDocumentCatalog().getPages().get(selectedPage));
+        }
+        if (!indexed) {
+            List<PageGeometry> pages = new ArrayList<PageGeometry>(pageCount);
+            for (PDPage p : pddoc.getDocumentCatalog().getPages()) {
+                pages.add(new PageGeometry(p));
+            }
+            indexGeometry(docURI, new DocumentGeometry(pages));
+        }
+        ImageInfo info = createImageInfo(uri, selectedPage, pageCount, page, context);
+        ImagePDF image;
+        if (pddoc == handle.getDocument()) {
+            image = new ImagePDF(info, handle);
+            //FOP will most likely ask for the next pages soon
+            PagePrefetcher.prefetch(handle, selectedPage);
+        } else {
+            //the interceptor substituted a document of its own
+            image = new ImagePDF(info, pddoc);
+        }
+        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, image);
+        return info;
+    }
+
+    private static PageGeometryIndex createGeometryIndex() {
+        String dir = System.getProperty("fop.pdfbox.geometry-index");
+        return dir != null && dir.length() > 0 ? new PageGeometryIndex(new File(dir)) : null;
+    }
+
+    private DocumentGeometry lookupGeometry(URI docURI) {
+        File file = getLocalFile(docURI);
+        return file != null ? GEOMETRY_INDEX.get(file) : null;
+    }
+
+    private void indexGeometry(URI docURI, DocumentGeometry geometry) {
+        File file = getLocalFile(docURI);
+        if (file == null) {
+            return;
+        }
+        try {
+            GEOMETRY_INDEX.put(file, geometry);
+        } catch (IOException ioe) {
+            log.warn("Could not record page geometry of " + docURI + ": " + ioe.getMessage());
+        }
+    }
+
+    private DocumentGeometry probeGeometry(URI docURI) {
+        File file = getLocalFile(docURI);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return PageGeometryProbe.probe(file);
+        } catch (IOException ioe) {
+            //e.g. a damaged cross-reference table: let PDFBox try harder with a full load
+            log.debug("Could not probe page geometry of " + docURI + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    private ImageInfo createImageInfo(String uri, int selectedPage, int pageCount, PageGeometry page,
+                                      ImageContext context) throws ImageException {
+        if (page == null) {
             throw new ImageException("Selected page (index: " + selectedPage
                     + ") does not exist in the PDF file. The document has "
-                    + pddoc.getNumberOfPages() + " pages.");
+                    + pageCount + " pages.");
         }
-        PDPage page = pddoc.getDocumentCatalog().getPages().get(selectedPage);
-        PDRectangle mediaBox = page.getMediaBox();
-        PDRectangle cropBox = page.getCropBox();
-        PDRectangle viewBox = cropBox != null ? cropBox : mediaBox;
+        PDRectangle viewBox = page.getViewBox();
         int w = Math.round(viewBox.getWidth() * 1000);
         int h = Math.round(viewBox.getHeight() * 1000);
 
         //Handle the /Rotation entry on the page dict
-        int rotation = PDFUtil.getNormalizedRotation(page);
+        int rotation = PDFUtil.getNormalizedRotation(page.getRotation());
         if (rotation == 90 || rotation == 270) {
             //Swap width and height
             int exch = w;
@@ -141,9 +314,8 @@ public class PreloaderPDF extends AbstractImagePreloader {
 
         ImageInfo info = new ImageInfo(uri, ImagePDF.MIME_PDF);
         info.setSize(size);
-        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, new ImagePDF(info, pddoc));
 
-        int lastPageIndex = pddoc.getNumberOfPages() - 1;
+        int lastPageIndex = pageCount - 1;
         if (selectedPage < lastPageIndex) {
             info.getCustomObjects().put(ImageInfo.HAS_MORE_IMAGES, Boolean.TRUE);
         }
@@ -151,6 +323,34 @@ public class PreloaderPDF extends AbstractImagePreloader {
         return info;
     }
 
+    /**
+     * Loads the document for an image which has been preloaded without it (see
+     * {@link #PROBE_GEOMETRY}).
+     * @param info the image info created by the preloader
+     * @param session the image session context
+     * @return the PDF image
+     * @throws ImageException if the document URI is invalid
+     * @throws IOException if an I/O error occurs
+     */
+    static ImagePDF loadImage(ImageInfo info, ImageSessionContext session) throws ImageException, IOException {
+        Source src = session.needSource(info.getOriginalURI());
+        URI docURI = deriveDocumentURI(src.getSystemId());
+        DocumentHandle handle = getDocument(session.getParentContext(), docURI, src);
+        try {
+            PDDocument pddoc = handle.getDocument();
+            int selectedPage = ImageUtil.needPageIndexFromURI(info.getOriginalURI());
+            if (selectedPage < 0 || selectedPage >= pddoc.getNumberOfPages()) {
+                throw new ImageException("Selected page (index: " + selectedPage
+                        + ") does not exist in the PDF file. The document has "
+                        + pddoc.getNumberOfPages() + " pages.");
+            }
+            PagePrefetcher.prefetch(handle, selectedPage);
+            return new ImagePDF(info, handle);
+        } finally {
+            handle.release();
+        }
+    }
+
 //    private void notifyCouldNotDecrypt(Exception e)
 //            throws ImageException {
 //        throw new ImageException("Error decrypting PDF: "
@@ -159,10 +359,44 @@ public class PreloaderPDF extends AbstractImagePreloader {
 //                + "suitable decryption material (ex. a password).", e);
 //    }
 
-    private PDDocument getDocument(Object context, URI uri, Source src)
+    /**
+     * Returns the document for the given URI, loading it if necessary.
+     * @return the document handle, with a reference held for the caller which must release it
+     */
+    private static DocumentHandle getDocument(Object context, URI uri, Source src)
             throws IOException {
         try {
-            return getDocumentCache(context).getValue(uri, createDocumentMaker(src, uri));
+            Cache<Object, DocumentHandle> documentCache = getDocumentCache(context);
+            DocumentKey key = createDocumentKey(uri, src);
+            if (key.key == null) {
+                //only one thread reads the document to learn its digest, the others then use it
+                Object lock = new Object();
+                Object previous = DIGESTING_URIS.putIfAbsent(uri, lock);
+                synchronized (previous != null ? previous : lock) {
+                    try {
+                        key = createDocumentKey(uri, src);
+                        if (key.key == null) {
+                            return loadByContent(documentCache, uri, src);
+                        }
+                    } finally {
+                        DIGESTING_URIS.remove(uri, lock);
+                    }
+                }
+            }
+            DocumentHandle pinned = PINNED_DOCUMENTS.get(key.key);
+            if (pinned != null && pinned.tryRetain()) {
+                documentCache.getStatistics().recordHit(key.key);
+                ImageUtil.closeQuietly(src);
+                return pinned;
+            }
+            while (true) {
+                DocumentMaker maker = createDocumentMaker(src, uri, key.digest);
+                DocumentHandle handle = documentCache.getValue(key.key, maker);
+                if (handle == maker.made || handle.tryRetain()) {
+                    return handle;
+                }
+                //dropped from the cache and closed in the meantime by another thread: load it again
+            }
         } catch (IOException ioe) {
             throw ioe;
         } catch (Exception e) {
@@ -171,37 +405,416 @@ public class PreloaderPDF extends AbstractImagePreloader {
         }
     }
 
-    private Cache<URI, PDDocument> getDocumentCache(Object context) {
-        Cache<URI, PDDocument> documentCache = documentCacheMap.get(context);
+    /**
+     * Determines the key under which the document for the given URI is cached: the URI
+     * itself or, if documents are keyed by content, the digest of the document's bytes. The
+     * key is null if the digest of a document which is not a local file is not known yet.
+     */
+    private static DocumentKey createDocumentKey(URI uri, Source src) throws IOException {
+        if (!DIGEST_KEYS) {
+            return new DocumentKey(uri, null);
+        }
+        File file = getLocalFile(uri);
+        String digest = file != null ? getDigest(uri, file) : getKnownDigest(uri, null);
+        return new DocumentKey(digest, digest);
+    }
+
+    /**
+     * Loads a document whose digest is not known yet, digesting its bytes while they are
+     * parsed, and caches it under that digest unless a document with the same content is
+     * already cached.
+     * @return the document handle, with a reference held for the caller which must release it
+     */
+    private static DocumentHandle loadByContent(Cache<Object, DocumentHandle> documentCache, URI uri, Source src)
+            throws Exception {
+        final DocumentHandle loaded = createDocumentMaker(src, uri, null).make();
+        String digest = loaded.getDigest();
+        DocumentHandle handle = PINNED_DOCUMENTS.get(digest);
+        if (handle == null) {
+            handle = documentCache.getValue(digest, new ValueMaker<DocumentHandle>() {
+                public DocumentHandle make() {
+                    return loaded;
+                }
+            });
+            if (handle == loaded) {
+                return loaded;
+            }
+        }
+        //the same content has already been loaded from another URI: share that document
+        loaded.release();
+        if (handle.tryRetain()) {
+            loaded.release();
+            return handle;
+        }
+        return loaded;
+    }
+
+    /**
+     * Loads a document and pins it: it is shared by all image contexts and never evicted
+     * until it is unpinned. If documents are keyed by content, URIs with the same content
+     * share one pinned document, which stays pinned until all of them are unpinned.
+     * @param uri the document URI
+     * @param src the source to read the document from
+     * @throws IOException if the document cannot be loaded
+     */
+    static void pinDocument(URI uri, Source src) throws IOException {
+        DocumentKey key = createDocumentKey(uri, src);
+        if (key.digest != null && pinShared(uri, key.digest)) {
+            ImageUtil.closeQuietly(src);
+            return;
+        }
+        DocumentHandle handle;
+        try {
+            handle = createDocumentMaker(src, uri, key.digest).make();
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        //the maker hands out two references, the pinned tier only keeps one
+        handle.release();
+        resolveResources(handle.getDocument());
+        if (key.key == null && pinShared(uri, handle.getDigest())) {
+            //the content turned out to be pinned already with another URI
+            handle.release();
+            return;
+        }
+        Object pinnedKey = key.key != null ? key.key : handle.getDigest();
+        DocumentHandle previous;
+        synchronized (PINNED_URIS) {
+            Object previousKey = PINNED_URIS.put(uri, pinnedKey);
+            previous = PINNED_DOCUMENTS.put(pinnedKey, handle);
+            if (previousKey != null && !previousKey.equals(pinnedKey)) {
+                //the content of the URI has changed
+                dropPinnedDocument(previousKey);
+            }
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Pins a URI to the document pinned with another URI with the same content, if there is one.
+     * @param uri the document URI
+     * @param digest the digest of the document's bytes
+     * @return true if the document was pinned already
+     */
+    private static boolean pinShared(URI uri, String digest) {
+        synchronized (PINNED_URIS) {
+            if (!PINNED_DOCUMENTS.containsKey(digest)) {
+                return false;
+            }
+            Object previousKey = PINNED_URIS.put(uri, digest);
+            if (previousKey != null && !previousKey.equals(digest)) {
+                dropPinnedDocument(previousKey);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Unpins a document. It is closed once it is no longer used by any image.
+     * @param uri the URI the document has been pinned with
+     * @return true if a document was pinned with that URI
+     */
+    static boolean unpinDocument(URI uri) {
+        synchronized (PINNED_URIS) {
+            Object key = PINNED_URIS.remove(uri);
+            if (key == null) {
+                return false;
+            }
+            dropPinnedDocument(key);
+            return true;
+        }
+    }
+
+    /**
+     * Drops the pinned document of a key unless another URI is still pinned to it. Called
+     * while holding the lock on {@link #PINNED_URIS}.
+     */
+    private static void dropPinnedDocument(Object key) {
+        if (!PINNED_URIS.containsValue(key)) {
+            DocumentHandle handle = PINNED_DOCUMENTS.remove(key);
+            if (handle != null) {
+                handle.release();
+            }
+        }
+    }
+
+    /** @return the URIs of the pinned documents */
+    static Set<URI> getPinnedURIs() {
+        return Collections.unmodifiableSet(PINNED_URIS.keySet());
+    }
+
+    /**
+     * Resolves the resources of all pages so that nothing is left to be parsed when a page
+     * of the document is used for the first time.
+     */
+    private static void resolveResources(PDDocument pddoc) {
+        Map<COSBase, Boolean> visited = new IdentityHashMap<COSBase, Boolean>();
+        for (PDPage page : pddoc.getDocumentCatalog().getPages()) {
+            page.getMediaBox();
+            if (page.getResources() != null) {
+                resolve(page.getResources().getCOSObject(), visited);
+            }
+        }
+    }
+
+    private static void resolve(COSBase base, Map<COSBase, Boolean> visited) {
+        List<COSBase> stack = new ArrayList<COSBase>();
+        stack.add(base);
+        while (!stack.isEmpty()) {
+            COSBase current = stack.remove(stack.size() - 1);
+            if (current instanceof COSObject) {
+                current = ((COSObject) current).getObject();
+            }
+            if (current == null || visited.put(current, Boolean.TRUE) != null) {
+                continue;
+            }
+            if (current instanceof COSDictionary) {
+                //also covers streams
+                stack.addAll(((COSDictionary) current).getValues());
+            } else if (current instanceof COSArray) {
+                for (COSBase item : (COSArray) current) {
+                    stack.add(item);
+                }
+            }
+        }
+    }
+
+    private static boolean isCached(Object context, URI uri) {
+        Object key = getKnownCacheKey(uri);
+        return key != null
+                && (PINNED_DOCUMENTS.containsKey(key) || getDocumentCache(context).getIfPresent(key) != null);
+    }
 
-        if (documentCache == null) {
-            documentCache = Cache.createCache(CACHE_TYPE);
-            documentCacheMap.put(context, documentCache);
+    /**
+     * Returns the key under which the document for the given URI is cached if it can be
+     * determined without reading the document.
+     * @param uri the document URI
+     * @return the cache key, null if it is not known
+     */
+    private static Object getKnownCacheKey(URI uri) {
+        return DIGEST_KEYS ? getKnownDigest(uri, getLocalFile(uri)) : uri;
+    }
+
+    /**
+     * Returns the remembered digest of a document if it is still valid.
+     * @param uri the document URI
+     * @param file the local file the URI points to (may be null)
+     * @return the digest or null if it is not known
+     */
+    private static String getKnownDigest(URI uri, File file) {
+        DigestAlias alias = DIGEST_ALIASES.get(uri);
+        return alias != null && alias.matches(file) ? alias.digest : null;
+    }
+
+    private static String getDigest(URI uri, File file) throws IOException {
+        DigestAlias alias = DIGEST_ALIASES.get(uri);
+        if (alias == null || !alias.matches(file)) {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            MessageDigest md = PDFUtil.createSHA1Digest();
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            alias = new DigestAlias(PDFUtil.toHexString(md.digest()), lastModified, length);
+            DIGEST_ALIASES.put(uri, alias);
         }
+        return alias.digest;
+    }
+
+    private static Cache<Object, DocumentHandle> getDocumentCache(Object context) {
+        synchronized (documentCacheMap) {
+            Cache<Object, DocumentHandle> documentCache = documentCacheMap.get(context);
+
+            if (documentCache == null) {
+                DocumentCachePolicy policy = getCachePolicy(context);
+                if (policy.isShared()) {
+                    documentCache = SHARED_DOCUMENT_CACHES.get(policy);
+                    if (documentCache == null) {
+                        documentCache = createDocumentCache(policy);
+                        SHARED_DOCUMENT_CACHES.put(policy, documentCache);
+                    }
+                } else {
+                    documentCache = createDocumentCache(policy);
+                }
+                documentCacheMap.put(context, documentCache);
+            }
+            return documentCache;
+        }
+    }
+
+    private static Cache<Object, DocumentHandle> createDocumentCache(DocumentCachePolicy policy) {
+        Cache<Object, DocumentHandle> documentCache = Cache.createCache(
+                Cache.Type.valueOf(policy.getType().name()), policy.getMaxEntries(), policy.getMaxBytes(),
+                DOCUMENT_WEIGHER);
+        documentCache.setTimeToLive(policy.getTimeToLive());
+        documentCache.setStatistics(CacheStatistics.createDocumentCacheStatistics(documentCache));
         return documentCache;
     }
 
-    private ValueMaker<PDDocument> createDocumentMaker(final Source src, final URI docURI) {
-        return new DocumentMaker(src, docURI);
+    /**
+     * Returns the document cache policy of an image context.
+     * @param context the image context
+     * @return the policy set for the context or the default policy
+     */
+    static DocumentCachePolicy getCachePolicy(Object context) {
+        synchronized (documentCacheMap) {
+            DocumentCachePolicy policy = CACHE_POLICIES.get(context);
+            return policy != null ? policy : DocumentCachePolicy.getDefault();
+        }
+    }
+
+    /**
+     * Sets the document cache policy of an image context. The context's current cache is
+     * replaced and, unless it is shared, cleared.
+     * @param context the image context
+     * @param policy the policy
+     */
+    static void setCachePolicy(Object context, DocumentCachePolicy policy) {
+        Cache<Object, DocumentHandle> previous;
+        synchronized (documentCacheMap) {
+            CACHE_POLICIES.put(context, policy);
+            previous = documentCacheMap.remove(context);
+            if (previous != null && SHARED_DOCUMENT_CACHES.containsValue(previous)) {
+                previous = null;
+            }
+        }
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    private static DocumentMaker createDocumentMaker(final Source src, final URI docURI, String digest) {
+        return new DocumentMaker(src, docURI, digest);
     }
 
-    static class DocumentMaker implements ValueMaker<PDDocument> {
+    static class DocumentMaker implements ValueMaker<DocumentHandle> {
         private Source src;
         private URI docURI;
-
-        public DocumentMaker(Source src, URI docURI) {
+        /**
+         * the digest of the document's bytes (may be null), determined while they are read if
+         * documents are keyed by content and the document is not a local file
+         */
+        private String digest;
+        /** the handle made by this maker, already retained for the caller of getDocument */
+        private DocumentHandle made;
+
+        public DocumentMaker(Source src, URI docURI, String digest) {
             this.src = src;
             this.docURI = docURI;
+            this.digest = digest;
         }
 
-            public PDDocument make() throws Exception {
-                final InputStream in = ImageUtil.needInputStream(src);
+            public DocumentHandle make() throws Exception {
+                File file = getLocalFile(docURI);
+                //PDFBox buffers the stream data of a file, and a stream as a whole plus its
+                //stream data; the length of a stream is only known once it has been read
+                ScratchMemoryBudget.Reservation reservation = ScratchMemoryBudget.reserve(
+                        file != null ? file.length() : -1);
+                MemoryUsageSetting memUsageSetting = reservation != null
+                        ? reservation.getSetting() : MemoryUsageSetting.setupMainMemoryOnly();
                 try {
-                    PDDocument pddoc = PDDocument.load(new SubInputStream(in, Integer.MAX_VALUE));
-                    return Interceptors.getInstance().interceptOnLoad(pddoc, docURI);
+                    PDDocument pddoc;
+                    long size;
+                    if (file != null) {
+                        //random access: the source is not buffered in memory as a whole
+                        pddoc = PDDocument.load(file, memUsageSetting);
+                        size = file.length();
+                    } else {
+                        InputStream in = ImageUtil.needInputStream(src);
+                        MessageDigest md = null;
+                        if (DIGEST_KEYS) {
+                            //PDFBox reads the stream to its end, so it is digested on the way in
+                            md = PDFUtil.createSHA1Digest();
+                            in = new DigestInputStream(in, md);
+                        }
+                        CountingInputStream counter = new CountingInputStream(
+                                new SubInputStream(in, Integer.MAX_VALUE));
+                        pddoc = PDDocument.load(counter, memUsageSetting);
+                        size = counter.getByteCount();
+                        if (reservation != null) {
+                            reservation.fit(2 * size);
+                        }
+                        if (md != null) {
+                            digest = PDFUtil.toHexString(md.digest());
+                            DIGEST_ALIASES.put(docURI, new DigestAlias(digest, -1, -1));
+                        }
+                    }
+                    pddoc = Interceptors.getInstance().interceptOnLoad(pddoc, docURI);
+                    //one reference for the cache and one for the caller
+                    made = new DocumentHandle(pddoc, size, digest, reservation);
+                    made.retain();
+                    return made;
+                } catch (Exception e) {
+                    if (reservation != null) {
+                        reservation.close();
+                    }
+                    throw e;
                 } finally {
                     ImageUtil.closeQuietly(src);
                 }
             }
         };
+
+    private static final class DocumentKey {
+
+        /** the cache key, null if it is the digest of a document not read yet */
+        private final Object key;
+        /** the digest of the document's bytes (may be null) */
+        private final String digest;
+
+        private DocumentKey(Object key, String digest) {
+            this.key = key;
+            this.digest = digest;
+        }
+    }
+
+    private static final class DigestAlias {
+
+        private final String digest;
+        /** the modification time of the local file, -1 for other URIs */
+        private final long lastModified;
+        private final long length;
+
+        private DigestAlias(String digest, long lastModified, long length) {
+            this.digest = digest;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private boolean matches(File file) {
+            if (file == null) {
+                return lastModified == -1;
+            }
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * Returns the local file the given document URI points to.
+     * @param docURI the document URI
+     * @return the file or null if the URI does not denote an existing local file
+     */
+    static File getLocalFile(URI docURI) {
+        if (!"file".equalsIgnoreCase(docURI.getScheme()) || docURI.isOpaque()) {
+            return null;
+        }
+        try {
+            File file = new File(docURI);
+            return file.isFile() ? file : null;
+        } catch (IllegalArgumentException iae) {
+            //e.g. a file URI with an authority component
+            return null;
+        }
+    }
 }
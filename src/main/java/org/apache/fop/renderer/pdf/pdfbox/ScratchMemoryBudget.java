@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+
+/**
+ * Limits the main memory PDFBox uses to buffer the source PDFs and their streams while they
+ * are parsed. Beyond the limit, PDFBox spills to temporary files. The limits are set with
+ * system properties:
+ * <ul>
+ * <li><code>fop.pdfbox.scratch.max-document-memory</code>: maximum number of bytes of main
+ * memory per document</li>
+ * <li><code>fop.pdfbox.scratch.max-memory</code>: maximum number of bytes of main memory for
+ * all documents loaded by the preloader in the JVM; documents loaded while the budget is used
+ * up are buffered in temporary files only</li>
+ * <li><code>fop.pdfbox.scratch.dir</code>: directory for the temporary files (default: the
+ * system's temporary directory)</li>
+ * </ul>
+ * If no limit is set, PDFBox buffers everything in main memory.
+ */
+final class ScratchMemoryBudget {
+
+    private static final long MAX_DOCUMENT_MEMORY = Long.getLong("fop.pdfbox.scratch.max-document-memory", -1);
+
+    private static final long MAX_MEMORY = Long.getLong("fop.pdfbox.scratch.max-memory", -1);
+
+    private static final String SCRATCH_DIR = System.getProperty("fop.pdfbox.scratch.dir");
+
+    /** main memory left to be handed out to documents */
+    private static final AtomicLong AVAILABLE = new AtomicLong(MAX_MEMORY);
+
+    private ScratchMemoryBudget() { }
+
+    /** @return true if the main memory used for parsing is limited */
+    static boolean isEnabled() {
+        return MAX_DOCUMENT_MEMORY >= 0 || MAX_MEMORY >= 0;
+    }
+
+    /** @return the main memory currently left for further documents, -1 if unlimited */
+    static long getAvailableMemory() {
+        return MAX_MEMORY >= 0 ? AVAILABLE.get() : -1;
+    }
+
+    /**
+     * Reserves main memory for a document to be loaded. The reservation is sized from the
+     * expected scratch memory, capped by the per-document limit, so that small documents kept
+     * in the document cache do not hold on to a whole share of the budget.
+     * @param expected the number of bytes PDFBox is expected to buffer for the document, -1 if
+     * not known before the document is read (see {@link Reservation#fit(long)})
+     * @return the reservation, null if the main memory is not limited
+     */
+    static Reservation reserve(long expected) {
+        if (!isEnabled()) {
+            return null;
+        }
+        long wanted = MAX_DOCUMENT_MEMORY >= 0 ? MAX_DOCUMENT_MEMORY : MAX_MEMORY;
+        if (expected >= 0) {
+            wanted = Math.min(wanted, expected);
+        }
+        long granted = wanted;
+        if (MAX_MEMORY >= 0) {
+            while (true) {
+                long available = AVAILABLE.get();
+                granted = Math.min(wanted, available);
+                if (AVAILABLE.compareAndSet(available, available - granted)) {
+                    break;
+                }
+            }
+        }
+        MemoryUsageSetting setting;
+        if (granted > 0) {
+            setting = MemoryUsageSetting.setupMixed(granted);
+        } else {
+            setting = MemoryUsageSetting.setupTempFileOnly();
+        }
+        if (SCRATCH_DIR != null) {
+            setting.setTempDir(new File(SCRATCH_DIR));
+        }
+        return new Reservation(setting, MAX_MEMORY >= 0 ? granted : 0);
+    }
+
+    /**
+     * Main memory reserved for one document. Closing the reservation returns the memory to
+     * the budget; it must not be closed before the document.
+     */
+    static final class Reservation implements Closeable {
+
+        private final MemoryUsageSetting setting;
+
+        private final AtomicLong bytes;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Reservation(MemoryUsageSetting setting, long bytes) {
+            this.setting = setting;
+            this.bytes = new AtomicLong(bytes);
+        }
+
+        /** @return the memory usage setting to load the document with */
+        MemoryUsageSetting getSetting() {
+            return setting;
+        }
+
+        /** @return the number of bytes of the budget held by this reservation */
+        long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Hands back the share of the reservation the document does not need, once the number
+         * of bytes buffered for it is known.
+         * @param needed the number of bytes PDFBox buffers for the document at most
+         */
+        void fit(long needed) {
+            if (closed.get()) {
+                return;
+            }
+            while (true) {
+                long held = bytes.get();
+                long surplus = held - Math.max(needed, 0);
+                if (surplus <= 0) {
+                    return;
+                }
+                if (bytes.compareAndSet(held, held - surplus)) {
+                    AVAILABLE.addAndGet(surplus);
+                    return;
+                }
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                AVAILABLE.addAndGet(bytes.getAndSet(0));
+            }
+        }
+    }
+}
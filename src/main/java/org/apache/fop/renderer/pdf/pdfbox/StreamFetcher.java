@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.cos.COSStream;
+
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * Copies the data of the streams cloned from a source PDF on worker threads. The streams are
+ * cloned, cached and registered on the calling thread as usual, only their payloads, which
+ * are independent of each other, are collected and then read and decoded in parallel while
+ * the calling thread waits. Decoded data which is re-encoded with Flate (see
+ * {@link PDFBoxAdapter#setRecompressionLevel(int)}) is always compressed here, and images
+ * (see {@link PDFBoxAdapter#setDownsampleResolution(int)}) are downsampled here. Enabled with the system property
+ * <code>fop.pdfbox.parallel-streams</code> (see {@link PDFBoxAdapter#setParallelStreams(boolean)});
+ * <code>fop.pdfbox.parallel-streams.threads</code> sets the number of worker threads
+ * (default: the number of processors).
+ * <p>
+ * The payloads are read while the caller holds the lock of the source document, on its
+ * behalf; the streams of a parsed document are independent buffers which PDFBox reads
+ * without touching the parser.
+ */
+final class StreamFetcher {
+
+    /** the default of {@link PDFBoxAdapter#setParallelStreams(boolean)} */
+    static final boolean ENABLED = Boolean.getBoolean("fop.pdfbox.parallel-streams");
+
+    private static final int THREADS = Math.max(1, Integer.getInteger("fop.pdfbox.parallel-streams.threads",
+            Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService executor;
+
+    private final List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+
+    /**
+     * Schedules the copy of the data of a source stream into a cloned stream.
+     * @param source the source stream
+     * @param decoded true to copy the decoded data, false for the encoded data
+     * @param target the cloned stream
+     * @param level the Flate compression level to re-encode decoded data with, -1 to copy it as is
+     */
+    void add(final COSStream source, final boolean decoded, final PDFStream target, final int level) {
+        jobs.add(new Callable<Void>() {
+            public Void call() throws IOException {
+                copy(open(source, decoded), target.getBufferOutputStream(), level);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Schedules the downsampling of an image.
+     * @param image the downsampled clone of the image
+     */
+    void add(final ImageDownsampler.DownsampledImage image) {
+        jobs.add(new Callable<Void>() {
+            public Void call() throws IOException {
+                image.downsample();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Opens the data of a source stream.
+     * @param source the source stream
+     * @param decoded true for the decoded data, false for the encoded data
+     * @return the data
+     * @throws IOException if the stream cannot be read
+     */
+    static InputStream open(COSStream source, boolean decoded) throws IOException {
+        return decoded ? source.getUnfilteredStream() : source.getFilteredStream();
+    }
+
+    /**
+     * Copies stream data and closes the input.
+     * @param in the data to copy
+     * @param out the stream to copy the data to
+     * @param level the Flate compression level to encode the data with, -1 to copy it as is
+     * @throws IOException if the data cannot be read or written
+     */
+    static void copy(InputStream in, OutputStream out, int level) throws IOException {
+        try {
+            if (level < 0) {
+                IOUtils.copyLarge(in, out);
+            } else {
+                Deflater deflater = new Deflater(level);
+                try {
+                    DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+                    IOUtils.copyLarge(in, deflated);
+                    deflated.finish();
+                } finally {
+                    deflater.end();
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies the data of all scheduled streams and waits until they are done. The calling
+     * thread takes its share of the work.
+     * @throws IOException if a stream cannot be read
+     */
+    void fetch() throws IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(jobs.size());
+        try {
+            for (int i = 1; i < jobs.size(); i++) {
+                futures.add(getExecutor().submit(jobs.get(i)));
+            }
+            //run the first one here, and the others which have not started yet
+            FutureTask<Void> first = new FutureTask<Void>(jobs.get(0));
+            futures.add(0, first);
+            for (Future<Void> future : futures) {
+                if (future instanceof Runnable) {
+                    ((Runnable) future).run();
+                }
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying PDF streams");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IllegalStateException("Cannot copy PDF stream: " + ee.getCause().getMessage(), ee.getCause());
+        } finally {
+            jobs.clear();
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /** drops the scheduled copies, e.g. because cloning failed */
+    void clear() {
+        jobs.clear();
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            //copies beyond the number of threads are run by the caller
+            executor = new ThreadPoolExecutor(0, THREADS, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new FetchThreadFactory(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    private static final class FetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "fop-pdf-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
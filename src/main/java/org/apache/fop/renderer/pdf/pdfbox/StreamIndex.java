@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFStream;
+
+/**
+ * Index of the streams imported into an output document, by a digest of their data and
+ * dictionary. Streams with the same content imported from different source PDFs, such as a
+ * logo, an ICC profile or a font program, are thus written only once.
+ * <p>
+ * The streams are referenced weakly, so the index does not keep them in memory after they
+ * have been written and are no longer used by any object cache.
+ */
+final class StreamIndex {
+
+    /** the default of {@link PDFBoxAdapter#setShareStreams(boolean)} */
+    static final boolean ENABLED = Boolean.getBoolean("fop.pdfbox.stream-dedup");
+
+    private static final Map<PDFDocument, StreamIndex> INDEXES = new WeakHashMap<PDFDocument, StreamIndex>();
+
+    private final Map<String, WeakReference<PDFStream>> streams = new HashMap<String, WeakReference<PDFStream>>();
+
+    private StreamIndex() { }
+
+    /**
+     * Returns the stream index of an output document.
+     * @param pdfDoc the output document
+     * @return the index
+     */
+    static StreamIndex getInstance(PDFDocument pdfDoc) {
+        synchronized (INDEXES) {
+            StreamIndex index = INDEXES.get(pdfDoc);
+            if (index == null) {
+                index = new StreamIndex();
+                INDEXES.put(pdfDoc, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Adds a stream unless a stream with the same key has already been added.
+     * @param key the digest of the stream's data followed by a description of its dictionary
+     * @param stream the stream
+     * @return the stream added before with the same key or null if the given stream has
+     *          been added
+     */
+    synchronized PDFStream putIfAbsent(String key, PDFStream stream) {
+        WeakReference<PDFStream> ref = streams.get(key);
+        PDFStream existing = ref != null ? ref.get() : null;
+        if (existing == null) {
+            streams.put(key, new WeakReference<PDFStream>(stream));
+        }
+        return existing;
+    }
+}
@@ -18,8 +18,8 @@
 /* $Id$ */
 package org.apache.fop.render.pdf.pdfbox;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
@@ -29,7 +29,7 @@ import org.apache.pdfbox.pdmodel.PDResources;
 
 public class UniqueName {
     private String key;
-    private List<COSName> resourceNames;
+    private Set<COSName> resourceNames;
 
     public UniqueName(String key, PDResources sourcePageResources) {
         this.key = Integer.toString(key.hashCode());
@@ -43,8 +43,8 @@ public class UniqueName {
         return cn.getName();
     }
 
-    private List<COSName> getResourceNames(COSDictionary sourcePageResources) {
-        List<COSName> resourceNames = new ArrayList<COSName>();
+    private Set<COSName> getResourceNames(COSDictionary sourcePageResources) {
+        Set<COSName> resourceNames = new HashSet<COSName>();
         for (COSBase e : sourcePageResources.getValues()) {
             if (e instanceof COSObject) {
                 e = ((COSObject) e).getObject();
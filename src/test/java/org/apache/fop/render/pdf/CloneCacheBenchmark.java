@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFResources;
+import org.apache.fop.render.pdf.pdfbox.CloneCache;
+import org.apache.fop.render.pdf.pdfbox.PDFBoxAdapter;
+
+/**
+ * Measures {@link PDFBoxAdapter#cloneForNewDocument(Object)} on a large graph of indirect
+ * objects, with the clones keyed by packed object numbers as {@link CloneCache} does against
+ * the former "objNum gen" string keys in a hash map. Every object refers to another one cloned
+ * before, and the graph is cloned twice, the second time from the cache only. Not run as part
+ * of the tests; run it with the test classpath and optionally the number of objects and the
+ * number of rounds:
+ * <pre>java org.apache.fop.render.pdf.CloneCacheBenchmark 200000 5</pre>
+ */
+public final class CloneCacheBenchmark {
+
+    private static final Rectangle BOX = new Rectangle(0, 0, 100000, 100000);
+
+    private CloneCacheBenchmark() { }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        COSArray graph = createGraph(count);
+        System.out.println("Cloning " + count + " indirect objects twice, " + rounds + " rounds");
+        for (int i = 0; i < rounds; i++) {
+            long packed = clone(graph, new CloneCache());
+            long strings = clone(graph, new StringKeyCloneCache());
+            System.out.println("packed keys: " + packed / 1000000 + " ms, string keys: " + strings / 1000000 + " ms");
+        }
+    }
+
+    private static COSArray createGraph(int count) throws IOException {
+        COSArray graph = new COSArray();
+        COSObject[] objects = new COSObject[count];
+        for (int i = 0; i < count; i++) {
+            COSDictionary dict = new COSDictionary();
+            dict.setName(COSName.TYPE, "Test");
+            dict.setInt("Index", i);
+            if (i > 0) {
+                dict.setItem(COSName.PARENT, objects[(i - 1) / 2]);
+            }
+            objects[i] = new COSObject(dict);
+            objects[i].setObjectNumber(i + 1);
+            objects[i].setGenerationNumber(0);
+            graph.add(objects[i]);
+        }
+        return graph;
+    }
+
+    /** @return the time taken in nanoseconds */
+    private static long clone(COSArray graph, CloneCache cache) throws IOException {
+        PDFDocument pdfDoc = new PDFDocument("");
+        PDFPage page = new PDFPage(new PDFResources(pdfDoc), 0, BOX, BOX, BOX, BOX);
+        page.setDocument(pdfDoc);
+        CloningAdapter adapter = new CloningAdapter(page, cache);
+        long start = System.nanoTime();
+        adapter.cloneGraph(graph);
+        adapter.cloneGraph(graph);
+        return System.nanoTime() - start;
+    }
+
+    private static final class CloningAdapter extends PDFBoxAdapter {
+
+        private CloningAdapter(PDFPage targetPage, CloneCache cache) {
+            super(targetPage, cache, new HashMap<Integer, PDFArray>());
+        }
+
+        private void cloneGraph(COSArray graph) throws IOException {
+            cloneForNewDocument(graph);
+        }
+    }
+
+    /** the former keying, which builds an "objNum gen" string for every look-up */
+    private static final class StringKeyCloneCache extends CloneCache {
+
+        private final Map<Object, Object> clones = new HashMap<Object, Object>();
+
+        public Object getIndirect(long key) {
+            return clones.get(toString(key));
+        }
+
+        public Object putIndirect(long key, Object clone) {
+            return clones.put(toString(key), clone);
+        }
+
+        public Object getDirect(COSDictionary dictionary) {
+            return clones.get(dictionary);
+        }
+
+        public Object putDirect(COSDictionary dictionary, Object clone) {
+            return clones.put(dictionary, clone);
+        }
+
+        private static String toString(long key) {
+            return (key >>> 16) + " " + (key & 0xFFFF);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.fop.render.pdf;
+
+import org.junit.Test;
+
+import org.apache.pdfbox.cos.COSDictionary;
+
+import org.apache.fop.render.pdf.pdfbox.CloneCache;
+
+import junit.framework.Assert;
+
+public class CloneCacheTestCase {
+
+    @Test
+    public void testIndirectObjects() {
+        CloneCache cache = new CloneCache();
+        int count = 100000;
+        for (int i = 1; i <= count; i++) {
+            Assert.assertNull(cache.putIndirect(CloneCache.getKey(i, 0), "obj" + i));
+        }
+        //same object number, other generation
+        cache.putIndirect(CloneCache.getKey(1, 1), "obj1gen1");
+        Assert.assertEquals(count + 1, cache.size());
+        for (int i = 1; i <= count; i++) {
+            Assert.assertEquals("obj" + i, cache.getIndirect(CloneCache.getKey(i, 0)));
+        }
+        Assert.assertEquals("obj1gen1", cache.getIndirect(CloneCache.getKey(1, 1)));
+        Assert.assertNull(cache.getIndirect(CloneCache.getKey(count + 1, 0)));
+        Assert.assertEquals("obj2", cache.putIndirect(CloneCache.getKey(2, 0), "new"));
+        Assert.assertEquals("new", cache.getIndirect(CloneCache.getKey(2, 0)));
+        Assert.assertEquals(count + 1, cache.size());
+    }
+
+    @Test
+    public void testDirectDictionaries() {
+        CloneCache cache = new CloneCache();
+        COSDictionary dict1 = new COSDictionary();
+        COSDictionary dict2 = new COSDictionary();
+        cache.putDirect(dict1, "dict1");
+        Assert.assertEquals("dict1", cache.getDirect(dict1));
+        //equal content is not the same dictionary
+        Assert.assertNull(cache.getDirect(dict2));
+    }
+}
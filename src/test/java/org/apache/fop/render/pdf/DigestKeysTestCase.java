@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSource;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+import org.apache.xmlgraphics.image.loader.util.ImageUtil;
+
+import org.apache.fop.render.pdf.pdfbox.CacheListener;
+import org.apache.fop.render.pdf.pdfbox.CacheStatistics;
+import org.apache.fop.render.pdf.pdfbox.DocumentCachePolicy;
+import org.apache.fop.render.pdf.pdfbox.ImagePDF;
+import org.apache.fop.render.pdf.pdfbox.PinnedDocuments;
+import org.apache.fop.render.pdf.pdfbox.PreloaderPDF;
+
+import junit.framework.Assert;
+
+/**
+ * Tests of the document cache keyed by content digest. Run in a separate JVM with
+ * <code>fop.pdfbox.preloader-cache.key=digest</code>, see the surefire configuration.
+ */
+public class DigestKeysTestCase {
+
+    @Test
+    public void testSameContentSharesDocument() throws Exception {
+        File first = copy(PDFBoxAdapterTestCase.ROTATE);
+        File second = copy(PDFBoxAdapterTestCase.ROTATE);
+        DefaultImageContext context = createContext();
+        PDDocument doc = preload(first, context).getPDDocument();
+        Assert.assertSame(doc, preload(second, context).getPDDocument());
+        Assert.assertSame(doc, preload(first, context).getPDDocument());
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain() throws Exception {
+        File file = copy(PDFBoxAdapterTestCase.ROTATE);
+        DefaultImageContext context = createContext();
+        ImagePDF image = preload(file, context);
+        Assert.assertSame(image.getPDDocument(), preload(file, context).getPDDocument());
+
+        long lastModified = file.lastModified();
+        FileUtils.copyFile(new File(getClass().getResource("/link.pdf").toURI()), file);
+        file.setLastModified(lastModified + 2000);
+        ImagePDF changed = preload(file, context);
+        Assert.assertNotSame(image.getPDDocument(), changed.getPDDocument());
+        Assert.assertFalse(image.getDocumentHandle().getDigest().equals(changed.getDocumentHandle().getDigest()));
+    }
+
+    @Test
+    public void testNonFileURIIsReadOnce() throws Exception {
+        File file = new File(getClass().getResource("/link.pdf").toURI());
+        final List<String> events = new ArrayList<String>();
+        CacheListener listener = new CacheListener() {
+            public void hit(CacheStatistics cache, Object key) {
+                events.add("hit");
+            }
+            public void miss(CacheStatistics cache, Object key) {
+                events.add("miss");
+            }
+            public void loaded(CacheStatistics cache, Object key, long nanos) {
+                events.add("loaded");
+            }
+            public void evicted(CacheStatistics cache, Object key) {
+            }
+        };
+        DefaultImageContext context = createContext();
+        CacheStatistics.addListener(listener);
+        try {
+            CountingStream in = new CountingStream(file);
+            ImagePDF image = preload("http://example.invalid/first.pdf", in, context);
+            Assert.assertEquals(file.length(), in.count);
+            Assert.assertEquals("[miss, loaded]", events.toString());
+
+            //the digest of the URI is remembered, only the header is read to recognize a PDF
+            in = new CountingStream(file);
+            Assert.assertSame(image.getPDDocument(),
+                    preload("http://example.invalid/first.pdf", in, context).getPDDocument());
+            Assert.assertTrue(in.count < 100);
+            Assert.assertEquals("[miss, loaded, hit]", events.toString());
+
+            //another URI with the same content is read once and shares the document
+            in = new CountingStream(file);
+            Assert.assertSame(image.getPDDocument(),
+                    preload("http://example.invalid/second.pdf", in, context).getPDDocument());
+            Assert.assertEquals(file.length(), in.count);
+        } finally {
+            CacheStatistics.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void testURIsWithSameContentSharePinnedDocument() throws Exception {
+        File first = copy(PDFBoxAdapterTestCase.ROTATE);
+        File second = copy(PDFBoxAdapterTestCase.ROTATE);
+        try {
+            PinnedDocuments.pin(first.toURI());
+            PinnedDocuments.pin(second.toURI());
+            ImagePDF image = preload(first, createContext());
+            Assert.assertSame(image.getPDDocument(), preload(second, createContext()).getPDDocument());
+
+            Assert.assertTrue(PinnedDocuments.unpin(first.toURI()));
+            Assert.assertFalse(PinnedDocuments.getPinnedURIs().contains(first.toURI()));
+            Assert.assertTrue(PinnedDocuments.getPinnedURIs().contains(second.toURI()));
+            //still pinned for the other URI
+            Assert.assertSame(image.getPDDocument(), preload(second, createContext()).getPDDocument());
+
+            Assert.assertTrue(PinnedDocuments.unpin(second.toURI()));
+            Assert.assertNotSame(image.getPDDocument(), preload(second, createContext()).getPDDocument());
+        } finally {
+            PinnedDocuments.unpinAll();
+        }
+    }
+
+    private DefaultImageContext createContext() {
+        DefaultImageContext context = new DefaultImageContext();
+        DocumentCachePolicy defaults = DocumentCachePolicy.getDefault();
+        new DocumentCachePolicy(DocumentCachePolicy.Type.STRONG, defaults.getMaxEntries(), defaults.getMaxBytes(),
+                -1, false).applyTo(context);
+        return context;
+    }
+
+    private File copy(String pdf) throws Exception {
+        File file = File.createTempFile("digest", ".pdf");
+        file.deleteOnExit();
+        FileUtils.copyFile(new File(getClass().getResource(pdf).toURI()), file);
+        return file;
+    }
+
+    private ImagePDF preload(File file, DefaultImageContext context) throws Exception {
+        String uri = file.toURI().toString();
+        return preload(uri, ImageIO.createImageInputStream(file), context);
+    }
+
+    private ImagePDF preload(String uri, InputStream in, DefaultImageContext context) throws Exception {
+        return preload(uri, ImageIO.createImageInputStream(in), context);
+    }
+
+    private ImagePDF preload(String uri, ImageInputStream in, DefaultImageContext context)
+            throws Exception {
+        ImageSource src = new ImageSource(in, uri, true);
+        try {
+            ImageInfo info = new PreloaderPDF().preloadImage(uri, src, context);
+            return (ImagePDF) info.getOriginalImage();
+        } finally {
+            ImageUtil.closeQuietly(src);
+        }
+    }
+
+    private static final class CountingStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingStream(File file) throws IOException {
+            super(new FileInputStream(file));
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.fop.render.pdf;
+
+import java.io.Closeable;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.xmlgraphics.image.loader.Image;
+import org.apache.xmlgraphics.image.loader.ImageContext;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
+import org.apache.xmlgraphics.image.loader.ImageSource;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageSessionContext;
+import org.apache.xmlgraphics.image.loader.util.ImageUtil;
+
+import org.apache.fop.render.pdf.pdfbox.DocumentHandle;
+import org.apache.fop.render.pdf.pdfbox.DocumentSession;
+import org.apache.fop.render.pdf.pdfbox.ImageConverterPDF2G2D;
+import org.apache.fop.render.pdf.pdfbox.ImageLoaderPDF;
+import org.apache.fop.render.pdf.pdfbox.ImagePDF;
+import org.apache.fop.render.pdf.pdfbox.PreloaderPDF;
+
+import junit.framework.Assert;
+
+public class DocumentHandleTestCase {
+
+    @Test
+    public void testLastReleaseClosesDocument() throws Exception {
+        PDDocument doc = PDDocument.load(getClass().getResourceAsStream("/image.pdf"));
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        handle.retain();
+        handle.release();
+        Assert.assertFalse(doc.getDocument().isClosed());
+        handle.release();
+        Assert.assertTrue(doc.getDocument().isClosed());
+        Assert.assertTrue(handle.isClosed());
+        Assert.assertFalse(handle.tryRetain());
+    }
+
+    @Test
+    public void testImageKeepsDocumentOpen() throws Exception {
+        PDDocument doc = PDDocument.load(getClass().getResourceAsStream("/image.pdf"));
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        ImagePDF image = new ImagePDF(new ImageInfo("image.pdf", ImagePDF.MIME_PDF), handle);
+        //drop the reference held by the creator, e.g. a document cache evicting the document
+        handle.release();
+        Assert.assertFalse(doc.getDocument().isClosed());
+        Assert.assertSame(doc, image.getPDDocument());
+    }
+
+    @Test
+    public void testExplicitReleaseOfOwnerReference() throws Exception {
+        PDDocument doc = PDDocument.load(getClass().getResourceAsStream("/image.pdf"));
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        Object owner = new Object();
+        Closeable reference = handle.retainFor(owner);
+        reference.close();
+        reference.close();
+        Assert.assertFalse(doc.getDocument().isClosed());
+        handle.release();
+        Assert.assertTrue(doc.getDocument().isClosed());
+    }
+
+    @Test
+    public void testSessionKeepsDocumentOpenUntilEnded() throws Exception {
+        PDDocument doc = PDDocument.load(getClass().getResourceAsStream("/image.pdf"));
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        ImageInfo info = new ImageInfo("image.pdf", ImagePDF.MIME_PDF);
+        ImagePDF image = new ImagePDF(info, handle);
+        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, image);
+        handle.release();
+        ImageSessionContext session = new DefaultImageSessionContext(new DefaultImageContext(), null);
+        Assert.assertSame(image, new ImageLoaderPDF(ImagePDF.PDFBOX_IMAGE).loadImage(info, null, session));
+        //the image has handed its reference over to the session
+        Assert.assertFalse(doc.getDocument().isClosed());
+        Assert.assertEquals(1, DocumentSession.end(session));
+        Assert.assertTrue(doc.getDocument().isClosed());
+        Assert.assertEquals(0, DocumentSession.end(session));
+    }
+
+    @Test
+    public void testImageOfEndedSessionReloadsDocument() throws Exception {
+        ImageContext context = new DefaultImageContext();
+        ImageInfo info = preload("/image.pdf", context);
+        ImageLoaderPDF loader = new ImageLoaderPDF(ImagePDF.PDFBOX_IMAGE);
+        ImageSessionContext session = new DefaultImageSessionContext(context, null);
+        ImagePDF image = (ImagePDF) loader.loadImage(info, null, session);
+        DocumentSession.end(session);
+        //the default document cache only keeps the document used last
+        preload("/link.pdf", context);
+        Assert.assertTrue(image.getDocumentHandle().isClosed());
+
+        ImageSessionContext next = new DefaultImageSessionContext(context, null);
+        ImagePDF reloaded = (ImagePDF) loader.loadImage(info, null, next);
+        Assert.assertNotSame(image, reloaded);
+        Assert.assertFalse(reloaded.getDocumentHandle().isClosed());
+        DocumentSession.end(next);
+    }
+
+    @Test
+    public void testSessionHoldsDocumentOfConvertedImage() throws Exception {
+        PDDocument doc = PDDocument.load(getClass().getResourceAsStream("/image.pdf"));
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        ImageInfo info = new ImageInfo("image.pdf", ImagePDF.MIME_PDF);
+        info.getCustomObjects().put(ImageInfo.ORIGINAL_IMAGE, new ImagePDF(info, handle));
+        handle.release();
+        ImageSessionContext session = new DefaultImageSessionContext(new DefaultImageContext(), null);
+        Image image = new ImageLoaderPDF(ImagePDF.PDFBOX_IMAGE).loadImage(info, null, session);
+        Image converted = new ImageConverterPDF2G2D().convert(image, ImageUtil.getDefaultHints(session));
+        Assert.assertFalse(converted.isCacheable());
+        Assert.assertEquals(1, DocumentSession.end(session));
+        //the painter does not keep the document open beyond the session
+        Assert.assertTrue(doc.getDocument().isClosed());
+    }
+
+    private ImageInfo preload(String pdf, ImageContext context) throws Exception {
+        File file = new File(getClass().getResource(pdf).toURI());
+        String uri = file.toURI().toString();
+        ImageSource src = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+        try {
+            return new PreloaderPDF().preloadImage(uri, src, context);
+        } finally {
+            ImageUtil.closeQuietly(src);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseTooOften() throws Exception {
+        DocumentHandle handle = new DocumentHandle(new PDDocument(), 0);
+        handle.release();
+        handle.release();
+    }
+}
@@ -21,17 +21,22 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -45,11 +50,16 @@ import org.apache.fontbox.cff.CFFFont;
 import org.apache.fontbox.cff.CFFParser;
 import org.apache.fontbox.ttf.TTFParser;
 import org.apache.fontbox.type1.Type1Font;
+import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 
 import org.apache.xmlgraphics.image.loader.ImageException;
 import org.apache.xmlgraphics.image.loader.ImageInfo;
@@ -67,18 +77,26 @@ import org.apache.fop.fonts.MultiByteFont;
 import org.apache.fop.fonts.Typeface;
 import org.apache.fop.pdf.PDFAnnotList;
 import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDictionary;
 import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFEncryptionParams;
 import org.apache.fop.pdf.PDFFilterList;
 import org.apache.fop.pdf.PDFGState;
 import org.apache.fop.pdf.PDFPage;
 import org.apache.fop.pdf.PDFResources;
+import org.apache.fop.render.pdf.pdfbox.CloneCache;
+import org.apache.fop.render.pdf.pdfbox.DocumentHandle;
 import org.apache.fop.render.pdf.pdfbox.FOPPDFMultiByteFont;
 import org.apache.fop.render.pdf.pdfbox.FOPPDFSingleByteFont;
 import org.apache.fop.render.pdf.pdfbox.ImageConverterPDF2G2D;
 import org.apache.fop.render.pdf.pdfbox.ImagePDF;
+import org.apache.fop.render.pdf.pdfbox.ImportListener;
+import org.apache.fop.render.pdf.pdfbox.ImportStatistics;
 import org.apache.fop.render.pdf.pdfbox.PDFBoxAdapter;
 import org.apache.fop.render.pdf.pdfbox.PDFBoxImageHandler;
+import org.apache.fop.render.pdf.pdfbox.PDFWriter;
 import org.apache.fop.render.pdf.pdfbox.PSPDFGraphics2D;
+import org.apache.fop.render.pdf.pdfbox.UniqueName;
 import org.apache.fop.render.ps.PSDocumentHandler;
 import org.apache.fop.render.ps.PSImageFormResource;
 import org.apache.fop.render.ps.PSRenderingUtil;
@@ -338,6 +356,27 @@ public class PDFBoxAdapterTestCase {
         doc.close();
     }
 
+    @Test
+    public void testStreamingPDFWriter() throws IOException {
+        PDDocument doc = new PDDocument();
+        PDResources resources = new PDResources();
+        COSDictionary extGStates = new COSDictionary();
+        extGStates.setItem("GS1", new COSDictionary());
+        resources.getCOSObject().setItem(COSName.EXT_G_STATE, extGStates);
+        byte[] content = ("/GS1 gs 0.5 w /P <</MCID 0>> BDC\nBI /W 2 /H 1 /BPC 8 /CS /G ID \u00ff\u0000 EI\nEMC")
+                .getBytes("ISO-8859-1");
+        PDStream pdStream = new PDStream(doc, new ByteArrayInputStream(content));
+        UniqueName key = new UniqueName("key", resources);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new PDFWriter(key, 5).writeText(pdStream, bos);
+        String stream = bos.toString("ISO-8859-1");
+        Assert.assertTrue(stream, stream.startsWith("/GS1" + "key".hashCode() + " gs\n0.5 w\n/P <</MCID 5 >>BDC\n"));
+        Assert.assertTrue(stream, stream.contains(" ID \u00ff\u0000"));
+        Assert.assertTrue(stream, stream.endsWith("EI\nEMC\n"));
+        Assert.assertEquals(stream, new PDFWriter(key, 5).writeText(pdStream));
+        doc.close();
+    }
+
     @Test
     public void testLink() throws Exception {
         PDFDocument pdfdoc = new PDFDocument("");
@@ -379,6 +418,347 @@ public class PDFBoxAdapterTestCase {
         Assert.assertFalse(bos.toString("UTF-8").contains("/W 5 /H 5 /BPC 8 /CS /RGB ID ÿÿÿ"));
     }
 
+    @Test
+    public void testDeferredStreams() throws Exception {
+        String eager = importPage(IMAGE, false);
+        String deferred = importPage(IMAGE, true);
+        Assert.assertTrue(deferred.contains("/Subtype /Image"));
+        Assert.assertEquals(stripCreationDate(eager), stripCreationDate(deferred));
+    }
+
+    @Test
+    public void testParallelStreams() throws Exception {
+        for (String pdf : new String[] {IMAGE, XFORM, SHADING, Type1Subset1}) {
+            Assert.assertEquals(stripCreationDate(importPage(pdf, false, false)),
+                    stripCreationDate(importPage(pdf, false, true)));
+        }
+    }
+
+    @Test
+    public void testRecompression() throws Exception {
+        int[] levels = {0, 9};
+        int[] sizes = new int[2];
+        for (int i = 0; i < 2; i++) {
+            PDFDocument pdfdoc = new PDFDocument("");
+            pdfdoc.setEncryption(new PDFEncryptionParams());
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), 0, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new CloneCache(), new HashMap<Integer, PDFArray>());
+            adapter.setRecompressionLevel(levels[i]);
+            PDDocument doc = getResource(IMAGE);
+            adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(), new FontInfo(),
+                    new Rectangle());
+            doc.close();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pdfdoc.output(bos);
+            String output = bos.toString("ISO-8859-1");
+            //the image is decoded since the output is encrypted, and encoded only once
+            Assert.assertFalse(output.contains("/DCTDecode"));
+            Assert.assertTrue(output.contains("/Filter /FlateDecode\n"));
+            sizes[i] = bos.size();
+        }
+        Assert.assertTrue(sizes[0] > sizes[1] * 2);
+    }
+
+    @Test
+    public void testDownsampling() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        CloneCache cache = new CloneCache();
+        //the image is 816 pixels wide and placed 612pt wide, i.e. at 96 dpi if the page is placed at full size
+        Rectangle[] positions = {new Rectangle(0, 0, 360000, 270000), new Rectangle(0, 0, 720000, 540000)};
+        PDDocument doc = getResource(IMAGE);
+        for (int i = 0; i < positions.length; i++) {
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), i, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(i + 1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, cache, new HashMap<Integer, PDFArray>());
+            adapter.setDownsampleResolution(24);
+            adapter.setParallelStreams(i == 1);
+            adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(), new FontInfo(),
+                    positions[i]);
+        }
+        doc.close();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfdoc.output(bos);
+        String output = bos.toString("ISO-8859-1");
+        //the larger placement needs more pixels than the image downsampled for the smaller one
+        Assert.assertTrue(output.contains("/Width 102\n"));
+        Assert.assertTrue(output.contains("/Width 204\n"));
+        Assert.assertFalse(output.contains("/Width 816\n"));
+        Assert.assertEquals(2, output.split("/Filter /DCTDecode").length - 1);
+    }
+
+    @Test
+    public void testImportStatistics() throws Exception {
+        final List<ImportStatistics> imported = new ArrayList<ImportStatistics>();
+        ImportListener listener = new ImportListener() {
+            public void imported(ImportStatistics statistics) {
+                imported.add(statistics);
+            }
+        };
+        ImportStatistics.addListener(listener);
+        try {
+            PDFDocument pdfdoc = new PDFDocument("");
+            CloneCache cache = new CloneCache();
+            PDDocument doc = getResource(IMAGE);
+            for (int i = 0; i < 2; i++) {
+                PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), i, r, r, r, r);
+                pdfpage.setDocument(pdfdoc);
+                pdfpage.setObjectNumber(i + 1);
+                PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, cache, new HashMap<Integer, PDFArray>());
+                ImportStatistics statistics = new ImportStatistics(IMAGE, 0);
+                adapter.setStatistics(statistics);
+                adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(),
+                        new FontInfo(), new Rectangle());
+                statistics.finish();
+            }
+            doc.close();
+        } finally {
+            ImportStatistics.removeListener(listener);
+        }
+        Assert.assertEquals(2, imported.size());
+        ImportStatistics first = imported.get(0);
+        Assert.assertEquals(1, first.getObjects(ImportStatistics.Category.CONTENT));
+        Assert.assertEquals(1, first.getObjects(ImportStatistics.Category.IMAGE));
+        Assert.assertEquals(71288, first.getBytes(ImportStatistics.Category.IMAGE));
+        Assert.assertTrue(first.toString().contains("image 1/71288"));
+        Assert.assertTrue(first.getNanos() >= 0);
+        //the second import reuses the objects cloned by the first one
+        ImportStatistics second = imported.get(1);
+        Assert.assertEquals(0, second.getObjects(ImportStatistics.Category.IMAGE));
+        Assert.assertEquals(1, second.getTotalObjects());
+        Assert.assertTrue(second.getCacheHits() > 0);
+    }
+
+    @Test
+    public void testUsedResourcesAreNotCached() throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        CloneCache cache = new CloneCache();
+        PDDocument doc = getResource(CFF1);
+        int[] sizes = new int[3];
+        for (int i = 0; i < sizes.length; i++) {
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), i, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(i + 1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, cache, new HashMap<Integer, PDFArray>());
+            adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key" + i, new AffineTransform(),
+                    new FontInfo(), new Rectangle());
+            sizes[i] = cache.size();
+        }
+        doc.close();
+        //the dictionaries of the resources used by one placement are not kept for the next ones
+        Assert.assertTrue(sizes[0] > 0);
+        Assert.assertEquals(sizes[0], sizes[1]);
+        Assert.assertEquals(sizes[1], sizes[2]);
+    }
+
+    private String importPage(String pdf, boolean deferred) throws Exception {
+        return importPage(pdf, deferred, false);
+    }
+
+    private String importPage(String pdf, boolean deferred, boolean parallel) throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), 0, r, r, r, r);
+        pdfpage.setDocument(pdfdoc);
+        pdfpage.setObjectNumber(1);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new CloneCache(), new HashMap<Integer, PDFArray>());
+        adapter.setParallelStreams(parallel);
+        PDDocument doc = getResource(pdf);
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        if (deferred) {
+            adapter.setDocumentHandle(handle);
+        }
+        adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(), new FontInfo(),
+                new Rectangle());
+        handle.release();
+        //the streams still to be written keep the document open
+        Assert.assertEquals(deferred, !handle.isClosed());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfdoc.output(bos);
+        Assert.assertTrue(handle.isClosed());
+        return bos.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void testSharedStreams() throws Exception {
+        Assert.assertEquals(2, countImages(false));
+        Assert.assertEquals(1, countImages(true));
+    }
+
+    private int countImages(boolean shareStreams) throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        //the same image imported from two source documents
+        for (int i = 0; i < 2; i++) {
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), 0, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(i + 1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new CloneCache(), new HashMap<Integer, PDFArray>());
+            adapter.setShareStreams(shareStreams);
+            PDDocument doc = getResource(IMAGE);
+            adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key" + i, new AffineTransform(),
+                    new FontInfo(), new Rectangle());
+            doc.close();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfdoc.output(bos);
+        return bos.toString("ISO-8859-1").split("/Subtype /Image").length - 1;
+    }
+
+    @Test
+    public void testFormXObjects() throws Exception {
+        checkFormXObjects(false);
+        //the content is copied from the source document when the form XObject is written
+        checkFormXObjects(true);
+    }
+
+    private void checkFormXObjects(boolean deferred) throws Exception {
+        PDFDocument pdfdoc = new PDFDocument("");
+        pdfdoc.getFilterMap().put(PDFFilterList.DEFAULT_FILTER, Arrays.asList("null"));
+        CloneCache cache = new CloneCache();
+        PDDocument doc = getResource(IMAGE);
+        COSStream source = (COSStream) doc.getPage(0).getCOSObject().getDictionaryObject(COSName.CONTENTS);
+        String raw = IOUtils.toString(source.createRawInputStream(), "ISO-8859-1");
+        DocumentHandle handle = deferred ? new DocumentHandle(doc, 0) : null;
+        String[] contents = new String[2];
+        for (int i = 0; i < 2; i++) {
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), i, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(i + 1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, cache, new HashMap<Integer, PDFArray>());
+            adapter.setFormXObjects(true);
+            adapter.setDocumentHandle(handle);
+            contents[i] = adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(),
+                    new FontInfo(), new Rectangle(0, 0, 100000, 100000));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfdoc.output(bos);
+        doc.close();
+        if (handle != null) {
+            handle.release();
+        }
+        String output = bos.toString("ISO-8859-1");
+        Assert.assertEquals(contents[0], contents[1]);
+        Matcher matcher = Pattern.compile(" re W n\n/Fx(\\d+) Do\n$").matcher(contents[0]);
+        Assert.assertTrue(contents[0], matcher.find());
+        //one form XObject, named after its object number, with the content as it is and the resources of the page
+        Assert.assertEquals(2, output.split("/Subtype /Form").length);
+        String form = output.substring(output.indexOf("\n" + matcher.group(1) + " 0 obj\n"));
+        Assert.assertTrue(form.substring(0, form.indexOf("endobj")).contains("/Subtype /Form"));
+        Assert.assertTrue(output.contains("/Filter /FlateDecode\n"));
+        Assert.assertTrue(output.contains("stream\n" + raw));
+        Assert.assertTrue(Pattern.compile("/XObject << /Im1 \\d+ 0 R >>").matcher(output).find());
+    }
+
+    @Test
+    public void testCloneTemplates() throws Exception {
+        PDDocument doc = getResource(IMAGE);
+        DocumentHandle handle = new DocumentHandle(doc, 0);
+        String[] contents = new String[2];
+        String[] outputs = new String[2];
+        for (int i = 0; i < 2; i++) {
+            PDFDocument pdfdoc = new PDFDocument("");
+            PDFPage pdfpage = new PDFPage(new PDFResources(pdfdoc), 0, r, r, r, r);
+            pdfpage.setDocument(pdfdoc);
+            pdfpage.setObjectNumber(1);
+            PDFBoxAdapter adapter = new PDFBoxAdapter(pdfpage, new CloneCache(), new HashMap<Integer, PDFArray>());
+            adapter.setDocumentHandle(handle);
+            adapter.setCloneTemplates(true);
+            contents[i] = adapter.createStreamFromPDFBoxPage(doc, doc.getPage(0), "key", new AffineTransform(),
+                    new FontInfo(), new Rectangle());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            pdfdoc.output(bos);
+            outputs[i] = bos.toString("ISO-8859-1");
+            PDFDictionary xobjects = (PDFDictionary) pdfpage.getPDFResources().get("XObject");
+            Assert.assertNotNull(xobjects.get("Im1" + "key".hashCode()));
+            //the second import must not read the source document
+            doc.close();
+        }
+        handle.release();
+        Assert.assertEquals(contents[0], contents[1]);
+        Assert.assertTrue(outputs[1].contains("/Subtype /Image"));
+        Assert.assertTrue(outputs[1].contains("/Length 71288"));
+    }
+
+    private String stripCreationDate(String pdf) {
+        return pdf.replaceAll("/CreationDate \\(.*\\)", "");
+    }
+
+    @Test
+    public void testOnlyReferencedResourcesAreCloned() throws Exception {
+        PDDocument doc = new PDDocument();
+        PDPage page = new PDPage();
+        doc.addPage(page);
+        page.getCOSObject().setItem(COSName.CONTENTS, createStream(doc, "/Fm1 Do"));
+        COSDictionary xobjects = new COSDictionary();
+        //Fm1 inherits the page resources, so GS1 is referenced through it
+        xobjects.setItem("Fm1", createForm(doc, "/GS1 gs", 10));
+        xobjects.setItem("Fm2", createForm(doc, "/GS2 gs", 11));
+        COSDictionary extGStates = new COSDictionary();
+        extGStates.setItem("GS1", new COSDictionary());
+        extGStates.setItem("GS2", new COSDictionary());
+        PDResources resources = new PDResources();
+        resources.getCOSObject().setItem(COSName.XOBJECT, xobjects);
+        resources.getCOSObject().setItem(COSName.EXT_G_STATE, extGStates);
+        page.setResources(resources);
+        PDFBoxAdapter adapter = getPDFBoxAdapter();
+        adapter.createStreamFromPDFBoxPage(doc, page, "key", new AffineTransform(), new FontInfo(), new Rectangle());
+        doc.close();
+        PDFResources targetResources = adapter.getTargetPage().getPDFResources();
+        assertNames("Fm1", ((PDFDictionary) targetResources.get("XObject")).keySet());
+        assertNames("GS1", ((PDFDictionary) targetResources.get("ExtGState")).keySet());
+    }
+
+    private void assertNames(String expected, Set<String> names) {
+        Assert.assertEquals(names.toString(), 1, names.size());
+        Assert.assertTrue(names.toString(), names.iterator().next().startsWith(expected));
+    }
+
+    private COSStream createStream(PDDocument doc, String content) throws IOException {
+        COSStream stream = doc.getDocument().createCOSStream();
+        OutputStream os = stream.createOutputStream();
+        os.write(content.getBytes("US-ASCII"));
+        os.close();
+        return stream;
+    }
+
+    private COSObject createForm(PDDocument doc, String content, long objectNumber) throws IOException {
+        COSStream form = createStream(doc, content);
+        form.setItem(COSName.TYPE, COSName.XOBJECT);
+        form.setItem(COSName.SUBTYPE, COSName.FORM);
+        form.setItem(COSName.BBOX, new PDRectangle(10, 10).getCOSArray());
+        COSObject object = new COSObject(form);
+        object.setObjectNumber(objectNumber);
+        return object;
+    }
+
+    @Test
+    public void testDeepObjectGraph() throws Exception {
+        PDDocument doc = new PDDocument();
+        PDPage page = new PDPage();
+        doc.addPage(page);
+        PDStream contents = new PDStream(doc);
+        OutputStream os = contents.createOutputStream();
+        os.write("q Q".getBytes("US-ASCII"));
+        os.close();
+        page.setContents(contents);
+        //nesting far beyond what a recursive clone could cope with
+        COSArray deep = new COSArray();
+        COSArray current = deep;
+        for (int i = 0; i < 100000; i++) {
+            COSArray next = new COSArray();
+            current.add(next);
+            current = next;
+        }
+        PDResources resources = new PDResources();
+        resources.getCOSObject().setItem(COSName.getPDFName("Deep"), deep);
+        page.setResources(resources);
+        String stream = getPDFBoxAdapter().createStreamFromPDFBoxPage(doc, page, "key", new AffineTransform(),
+                new FontInfo(), new Rectangle());
+        doc.close();
+        Assert.assertTrue(stream, stream.contains("re W n"));
+    }
+
     @Test
     public void testPSPDFGraphics2D() throws Exception {
         ByteArrayOutputStream stream = pdfToPS(IMAGE);
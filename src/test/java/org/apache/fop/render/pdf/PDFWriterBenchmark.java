@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+import org.apache.fop.render.pdf.pdfbox.PDFWriter;
+import org.apache.fop.render.pdf.pdfbox.UniqueName;
+
+/**
+ * Measures the throughput of rewriting a large content stream, like those of CAD drawings,
+ * with {@link PDFWriter} writing one operation at a time to an output stream against the
+ * former implementation which parsed the whole stream into a token list and built the
+ * rewritten content as one string. Not run as part of the tests; run it with the test
+ * classpath and optionally the size of the content in megabytes and the number of rounds:
+ * <pre>java org.apache.fop.render.pdf.PDFWriterBenchmark 20 5</pre>
+ */
+public final class PDFWriterBenchmark {
+
+    private static final String OPERATIONS = "q 1 0 0 1 12.5 30.25 cm /GS1 gs 0.5 w\n"
+            + "10.123 20.456 m 30.789 40.012 l 50.5 60.25 70.125 80.0625 90.1 100.2 c S\n"
+            + "/P <</MCID 3>> BDC BT /F1 12 Tf 1 0 0 1 72 700 Tm [(Hello) -250 (World)] TJ ET EMC Q\n";
+
+    private PDFWriterBenchmark() { }
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] content = createContent(megabytes * 1024 * 1024);
+        PDDocument doc = new PDDocument();
+        try {
+            PDStream stream = new PDStream(doc, new ByteArrayInputStream(content));
+            UniqueName uniqueName = new UniqueName("key", createResources());
+            byte[] expected = new TokenListPDFWriter(uniqueName).writeText(stream).getBytes("ISO-8859-1");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new PDFWriter(uniqueName, 1).writeText(stream, out);
+            if (!Arrays.equals(expected, out.toByteArray())) {
+                throw new IllegalStateException("The rewritten contents differ");
+            }
+            System.out.println("Rewriting " + content.length + " bytes of content, " + rounds + " rounds");
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                new TokenListPDFWriter(uniqueName).writeText(stream).getBytes("ISO-8859-1");
+                long tokenList = System.nanoTime() - start;
+                start = System.nanoTime();
+                new PDFWriter(uniqueName, 1).writeText(stream, new NullOutputStream());
+                long streaming = System.nanoTime() - start;
+                System.out.println("token list: " + getThroughput(content.length, tokenList)
+                        + " MB/s, streaming: " + getThroughput(content.length, streaming) + " MB/s");
+            }
+        } finally {
+            doc.close();
+        }
+    }
+
+    private static byte[] createContent(int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + OPERATIONS.length());
+        byte[] operations = OPERATIONS.getBytes("ISO-8859-1");
+        while (out.size() < size) {
+            out.write(operations);
+        }
+        return out.toByteArray();
+    }
+
+    private static PDResources createResources() {
+        PDResources resources = new PDResources();
+        COSDictionary fonts = new COSDictionary();
+        fonts.setItem("F1", new COSDictionary());
+        resources.getCOSObject().setItem(COSName.FONT, fonts);
+        COSDictionary extGStates = new COSDictionary();
+        extGStates.setItem("GS1", new COSDictionary());
+        resources.getCOSObject().setItem(COSName.EXT_G_STATE, extGStates);
+        return resources;
+    }
+
+    private static long getThroughput(long bytes, long nanos) {
+        return bytes * 1000000000L / (nanos * 1024 * 1024);
+    }
+
+    /** the former implementation, which keeps the tokens and the rewritten content in memory */
+    private static final class TokenListPDFWriter extends PDFWriter {
+
+        private TokenListPDFWriter(UniqueName key) {
+            super(key, 1);
+        }
+
+        public String writeText(PDStream pdStream) throws IOException {
+            PDFStreamParser pdfStreamParser = new PDFStreamParser(pdStream);
+            pdfStreamParser.parse();
+            List<COSBase> arguments = new ArrayList<COSBase>();
+            for (Object o : pdfStreamParser.getTokens()) {
+                if (o instanceof Operator) {
+                    Operator op = (Operator) o;
+                    readPDFArguments(op, arguments);
+                    s.append(op.getName() + "\n");
+                    arguments.clear();
+                    if (op.getImageParameters() != null) {
+                        for (Map.Entry<COSName, COSBase> cn : op.getImageParameters().entrySet()) {
+                            arguments.add(cn.getKey());
+                            arguments.add(cn.getValue());
+                        }
+                        readPDFArguments(op, arguments);
+                        s.append("ID " + new String(op.getImageData(), "ISO-8859-1"));
+                        arguments.clear();
+                        s.append("EI\n");
+                    }
+                } else {
+                    arguments.add((COSBase) o);
+                }
+            }
+            return s.toString();
+        }
+    }
+}
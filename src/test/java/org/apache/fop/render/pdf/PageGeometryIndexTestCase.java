@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.fop.render.pdf;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+
+import org.apache.fop.render.pdf.pdfbox.DocumentGeometry;
+import org.apache.fop.render.pdf.pdfbox.PageGeometry;
+import org.apache.fop.render.pdf.pdfbox.PageGeometryIndex;
+import org.apache.fop.render.pdf.pdfbox.PageGeometryProbe;
+
+import junit.framework.Assert;
+
+public class PageGeometryIndexTestCase {
+
+    private File dir;
+    private File pdf;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("index", "");
+        dir.delete();
+        pdf = File.createTempFile("index", ".pdf");
+        FileUtils.copyURLToFile(getClass().getResource("/link.pdf"), pdf);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+        pdf.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PageGeometryIndex index = new PageGeometryIndex(dir);
+        Assert.assertNull(index.get(pdf));
+        DocumentGeometry geometry = PageGeometryProbe.probe(pdf);
+        index.put(pdf, geometry);
+
+        DocumentGeometry indexed = new PageGeometryIndex(dir).get(pdf);
+        Assert.assertEquals(geometry.getPageCount(), indexed.getPageCount());
+        for (int i = 0; i < geometry.getPageCount(); i++) {
+            PageGeometry expected = geometry.getPage(i);
+            PageGeometry actual = indexed.getPage(i);
+            Assert.assertEquals(expected.getRotation(), actual.getRotation());
+            Assert.assertEquals(expected.getMediaBox().getWidth(), actual.getMediaBox().getWidth(), 0.001);
+            Assert.assertEquals(expected.getViewBox().getHeight(), actual.getViewBox().getHeight(), 0.001);
+        }
+    }
+
+    @Test
+    public void testModifiedFileIsNotFound() throws IOException {
+        PageGeometryIndex index = new PageGeometryIndex(dir);
+        index.put(pdf, PageGeometryProbe.probe(pdf));
+        Assert.assertNotNull(index.get(pdf));
+        Assert.assertTrue(pdf.setLastModified(pdf.lastModified() - 10000));
+        Assert.assertNull(index.get(pdf));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.fop.render.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import org.apache.fop.render.pdf.pdfbox.DocumentGeometry;
+import org.apache.fop.render.pdf.pdfbox.PageGeometry;
+import org.apache.fop.render.pdf.pdfbox.PageGeometryProbe;
+
+import junit.framework.Assert;
+
+public class PageGeometryProbeTestCase {
+
+    private static final String[] PDFS = {"/rotate.pdf", "/image.pdf", "/link.pdf", "/xform.pdf", "/loop.pdf",
+        "/taggedWorld.pdf", "/shading.pdf", "/2fonts.pdf", "/emptyRowTable.pdf"};
+
+    @Test
+    public void testProbeMatchesLoadedDocument() throws Exception {
+        for (String pdf : PDFS) {
+            File file = getFile(pdf);
+            DocumentGeometry geometry = PageGeometryProbe.probe(file);
+            PDDocument doc = PDDocument.load(file);
+            try {
+                Assert.assertEquals(pdf, doc.getNumberOfPages(), geometry.getPageCount());
+                for (int i = 0; i < doc.getNumberOfPages(); i++) {
+                    PDPage page = doc.getPage(i);
+                    PageGeometry probed = geometry.getPage(i);
+                    assertEquals(pdf, page.getMediaBox(), probed.getMediaBox());
+                    assertEquals(pdf, page.getCropBox(), probed.getCropBox());
+                    Assert.assertEquals(pdf, page.getRotation(), probed.getRotation());
+                }
+            } finally {
+                doc.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        DocumentGeometry geometry = PageGeometryProbe.probe(getFile("/rotate.pdf"));
+        Assert.assertEquals(90, geometry.getPage(0).getRotation());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAPDF() throws Exception {
+        File file = File.createTempFile("probe", ".pdf");
+        try {
+            PageGeometryProbe.probe(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void assertEquals(String message, PDRectangle expected, PDRectangle actual) {
+        Assert.assertEquals(message, expected.getLowerLeftX(), actual.getLowerLeftX(), 0.001);
+        Assert.assertEquals(message, expected.getLowerLeftY(), actual.getLowerLeftY(), 0.001);
+        Assert.assertEquals(message, expected.getUpperRightX(), actual.getUpperRightX(), 0.001);
+        Assert.assertEquals(message, expected.getUpperRightY(), actual.getUpperRightY(), 0.001);
+    }
+
+    private File getFile(String pdf) throws URISyntaxException {
+        return new File(getClass().getResource(pdf).toURI());
+    }
+}
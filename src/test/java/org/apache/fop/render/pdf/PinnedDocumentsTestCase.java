@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.fop.render.pdf;
+
+import java.io.File;
+import java.net.URI;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSource;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+
+import org.apache.fop.render.pdf.pdfbox.ImagePDF;
+import org.apache.fop.render.pdf.pdfbox.PinnedDocuments;
+import org.apache.fop.render.pdf.pdfbox.PreloaderPDF;
+
+import junit.framework.Assert;
+
+public class PinnedDocumentsTestCase {
+
+    @After
+    public void tearDown() {
+        PinnedDocuments.unpinAll();
+    }
+
+    @Test
+    public void testPinnedDocumentIsShared() throws Exception {
+        File file = new File(getClass().getResource("/link.pdf").toURI());
+        PinnedDocuments.pin(file.toURI());
+        PDDocument first = preload(file, new DefaultImageContext());
+        Assert.assertSame(first, preload(file, new DefaultImageContext()));
+
+        Assert.assertTrue(PinnedDocuments.unpin(file.toURI()));
+        Assert.assertFalse(PinnedDocuments.unpin(file.toURI()));
+        Assert.assertNotSame(first, preload(file, new DefaultImageContext()));
+        //still in use by the images created while it was pinned
+        Assert.assertFalse(first.getDocument().isClosed());
+    }
+
+    @Test
+    public void testConfigure() throws Exception {
+        File file = new File(getClass().getResource("/image.pdf").toURI());
+        DefaultConfiguration cfg = new DefaultConfiguration("pdf-images");
+        DefaultConfiguration child = new DefaultConfiguration("pinned-document");
+        child.setAttribute("uri", file.getName());
+        cfg.addChild(child);
+        PinnedDocuments.configure(cfg, file.getParentFile().toURI());
+        Assert.assertEquals(1, PinnedDocuments.getPinnedURIs().size());
+        Assert.assertEquals(file.toURI(), PinnedDocuments.getPinnedURIs().iterator().next());
+    }
+
+    private PDDocument preload(File file, DefaultImageContext context) throws Exception {
+        String uri = file.toURI().toString();
+        ImageSource src = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+        ImageInfo info = new PreloaderPDF().preloadImage(uri, src, context);
+        return ((ImagePDF) info.getOriginalImage()).getPDDocument();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSource;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+import org.apache.xmlgraphics.image.loader.util.ImageUtil;
+
+import org.apache.fop.render.pdf.pdfbox.CacheStatistics;
+import org.apache.fop.render.pdf.pdfbox.DocumentCachePolicy;
+import org.apache.fop.render.pdf.pdfbox.PreloaderPDF;
+
+/**
+ * Measures the throughput of {@link PreloaderPDF} when many threads preload the same few PDFs
+ * into one image context at once, as in a server rendering many documents with shared images.
+ * Every round starts with an empty document cache keeping all documents, so the threads contend
+ * for the documents being loaded; each distinct PDF should be loaded once per round. Not run
+ * as part of the tests; run it with the test classpath and optionally the number of threads,
+ * the number of preloads per thread and the number of rounds:
+ * <pre>java org.apache.fop.render.pdf.PreloaderPDFBenchmark 32 200 5</pre>
+ */
+public final class PreloaderPDFBenchmark {
+
+    private static final String[] PDFS = {"/rotate.pdf", "/image.pdf", "/link.pdf", "/xform.pdf"};
+
+    private PreloaderPDFBenchmark() { }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int preloads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        File[] files = new File[PDFS.length];
+        for (int i = 0; i < PDFS.length; i++) {
+            files[i] = new File(PreloaderPDFBenchmark.class.getResource(PDFS[i]).toURI());
+        }
+        System.out.println(threads + " threads preloading " + PDFS.length + " PDFs " + preloads + " times each, "
+                + rounds + " rounds");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < rounds; i++) {
+                long loads = CacheStatistics.DOCUMENT_CACHES.getLoads();
+                long start = System.nanoTime();
+                preload(executor, threads, preloads, files);
+                long nanos = System.nanoTime() - start;
+                System.out.println((long) threads * preloads * 1000000000L / nanos + " preloads/s, "
+                        + (CacheStatistics.DOCUMENT_CACHES.getLoads() - loads) + " documents loaded");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void preload(ExecutorService executor, int threads, final int preloads, final File[] files)
+            throws Exception {
+        final DefaultImageContext context = new DefaultImageContext();
+        //the default cache only keeps the document used last
+        DocumentCachePolicy defaults = DocumentCachePolicy.getDefault();
+        new DocumentCachePolicy(DocumentCachePolicy.Type.STRONG, defaults.getMaxEntries(), defaults.getMaxBytes(),
+                -1, false).applyTo(context);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < threads; i++) {
+            final int offset = i;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    //the images are held like FOP's image cache does
+                    List<ImageInfo> images = new ArrayList<ImageInfo>();
+                    start.await();
+                    for (int j = 0; j < preloads; j++) {
+                        File file = files[(offset + j) % files.length];
+                        String uri = file.toURI().toString();
+                        ImageSource src = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+                        try {
+                            images.add(new PreloaderPDF().preloadImage(uri, src, context));
+                        } finally {
+                            ImageUtil.closeQuietly(src);
+                        }
+                    }
+                    return images;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Object> result : results) {
+            result.get();
+        }
+    }
+}
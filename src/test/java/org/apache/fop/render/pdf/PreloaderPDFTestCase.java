@@ -23,19 +23,40 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.imageio.stream.MemoryCacheImageInputStream;
 
-import org.junit.Ignore;
 import org.junit.Test;
 
+import org.apache.pdfbox.pdmodel.PDDocument;
+
 import org.apache.xmlgraphics.image.loader.ImageException;
 import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
 import org.apache.xmlgraphics.image.loader.ImageSource;
 import org.apache.xmlgraphics.image.loader.impl.DefaultImageContext;
+import org.apache.xmlgraphics.image.loader.impl.DefaultImageSessionContext;
 import org.apache.xmlgraphics.image.loader.impl.ImageRendered;
+import org.apache.xmlgraphics.image.loader.util.ImageUtil;
 
+import org.apache.fop.render.pdf.pdfbox.CacheListener;
+import org.apache.fop.render.pdf.pdfbox.CacheStatistics;
+import org.apache.fop.render.pdf.pdfbox.DocumentCachePolicy;
+import org.apache.fop.render.pdf.pdfbox.DocumentSession;
+import org.apache.fop.render.pdf.pdfbox.ImageLoaderPDF;
+import org.apache.fop.render.pdf.pdfbox.ImagePDF;
 import org.apache.fop.render.pdf.pdfbox.PreloaderImageRawData;
 import org.apache.fop.render.pdf.pdfbox.PreloaderPDF;
 
@@ -57,12 +78,282 @@ public class PreloaderPDFTestCase {
         Assert.assertTrue(img.getOriginalImage() instanceof ImageRendered);
     }
 
-    @Ignore("Seems to fail for some reason")
     @Test
     public void testPreloaderPDF() throws Exception {
+        //no system id: the document is read from the stream
         ImageSource imageSource = new ImageSource(
-                ImageIO.createImageInputStream(new File(PDFBoxAdapterTestCase.ROTATE)), "", true);
+                ImageIO.createImageInputStream(getClass().getResourceAsStream(PDFBoxAdapterTestCase.ROTATE)), "", true);
         ImageInfo imageInfo = new PreloaderPDF().preloadImage("", imageSource, new DefaultImageContext());
         Assert.assertEquals(imageInfo.getMimeType(), "application/pdf");
     }
+
+    @Test
+    public void testPreloaderPDFFromFile() throws Exception {
+        File file = new File(getClass().getResource(PDFBoxAdapterTestCase.ROTATE).toURI());
+        String uri = file.toURI().toString();
+        ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+        ImageInfo imageInfo = new PreloaderPDF().preloadImage(uri, imageSource, new DefaultImageContext());
+        Assert.assertEquals(imageInfo.getMimeType(), "application/pdf");
+        Assert.assertEquals(1, ((ImagePDF) imageInfo.getOriginalImage()).getPDDocument().getNumberOfPages());
+    }
+
+    @Test
+    public void testCacheStatistics() throws Exception {
+        final File file = new File(getClass().getResource(PDFBoxAdapterTestCase.ROTATE).toURI());
+        final List<String> events = new ArrayList<String>();
+        CacheListener listener = new CacheListener() {
+            public void hit(CacheStatistics cache, Object key) {
+                record("hit", key);
+            }
+            public void miss(CacheStatistics cache, Object key) {
+                record("miss", key);
+            }
+            public void loaded(CacheStatistics cache, Object key, long nanos) {
+                record("loaded", key);
+            }
+            public void evicted(CacheStatistics cache, Object key) {
+                record("evicted", key);
+            }
+            private void record(String event, Object key) {
+                if (file.toURI().equals(key)) {
+                    events.add(event);
+                }
+            }
+        };
+        long loads = CacheStatistics.DOCUMENT_CACHES.getLoads();
+        CacheStatistics.addListener(listener);
+        try {
+            DefaultImageContext context = new DefaultImageContext();
+            for (int i = 0; i < 2; i++) {
+                String uri = file.toURI().toString();
+                ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+                new PreloaderPDF().preloadImage(uri, imageSource, context);
+            }
+        } finally {
+            CacheStatistics.removeListener(listener);
+        }
+        Assert.assertEquals("[miss, loaded, hit]", events.toString());
+        Assert.assertEquals(loads + 1, CacheStatistics.DOCUMENT_CACHES.getLoads());
+    }
+
+    @Test
+    public void testCachePolicy() throws Exception {
+        File file = new File(getClass().getResource(PDFBoxAdapterTestCase.ROTATE).toURI());
+        DocumentCachePolicy defaults = DocumentCachePolicy.getDefault();
+        DocumentCachePolicy shared = new DocumentCachePolicy(DocumentCachePolicy.Type.STRONG,
+                defaults.getMaxEntries(), defaults.getMaxBytes(), -1, true);
+        DocumentCachePolicy isolated = new DocumentCachePolicy(DocumentCachePolicy.Type.STRONG,
+                defaults.getMaxEntries(), defaults.getMaxBytes(), -1, false);
+        DefaultImageContext batch1 = new DefaultImageContext();
+        DefaultImageContext batch2 = new DefaultImageContext();
+        DefaultImageContext interactive = new DefaultImageContext();
+        shared.applyTo(batch1);
+        shared.applyTo(batch2);
+        isolated.applyTo(interactive);
+        Assert.assertEquals(shared, DocumentCachePolicy.getPolicy(batch2));
+        Assert.assertEquals(defaults, DocumentCachePolicy.getPolicy(new DefaultImageContext()));
+
+        PDDocument doc = preload(file, batch1).getPDDocument();
+        Assert.assertSame(doc, preload(file, batch2).getPDDocument());
+        Assert.assertNotSame(doc, preload(file, interactive).getPDDocument());
+    }
+
+    private ImagePDF preload(File file, DefaultImageContext context) throws Exception {
+        String uri = file.toURI().toString();
+        ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+        ImageInfo info = new PreloaderPDF().preloadImage(uri, imageSource, context);
+        return (ImagePDF) info.getOriginalImage();
+    }
+
+    @Test
+    public void testLRUCacheEvictsLeastRecentlyUsed() throws Exception {
+        DefaultImageContext context = new DefaultImageContext();
+        new DocumentCachePolicy(DocumentCachePolicy.Type.LRU, 2, Long.MAX_VALUE, -1, false).applyTo(context);
+        List<String> evicted = new ArrayList<String>();
+        CacheListener listener = recordEvictions(evicted);
+        CacheStatistics.addListener(listener);
+        try {
+            ImageSessionContext session = new DefaultImageSessionContext(context, null);
+            ImagePDF rotate = load(PDFBoxAdapterTestCase.ROTATE, session);
+            ImagePDF link = load("/link.pdf", session);
+            Assert.assertSame(rotate.getPDDocument(), load(PDFBoxAdapterTestCase.ROTATE, session).getPDDocument());
+            //from now on only the cache keeps the documents open
+            DocumentSession.end(session);
+            Assert.assertFalse(link.getDocumentHandle().isClosed());
+
+            ImageSessionContext next = new DefaultImageSessionContext(context, null);
+            ImagePDF image = load("/image.pdf", next);
+            Assert.assertEquals("[link.pdf]", evicted.toString());
+            Assert.assertTrue(link.getDocumentHandle().isClosed());
+            Assert.assertFalse(rotate.getDocumentHandle().isClosed());
+            DocumentSession.end(next);
+            Assert.assertFalse(image.getDocumentHandle().isClosed());
+        } finally {
+            CacheStatistics.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void testLRUCacheEvictsByWeight() throws Exception {
+        File rotateFile = new File(getClass().getResource(PDFBoxAdapterTestCase.ROTATE).toURI());
+        File linkFile = new File(getClass().getResource("/link.pdf").toURI());
+        File xformFile = new File(getClass().getResource("/xform.pdf").toURI());
+        long maxBytes = rotateFile.length() + linkFile.length() - 1;
+        Assert.assertTrue(xformFile.length() > maxBytes);
+        DefaultImageContext context = new DefaultImageContext();
+        new DocumentCachePolicy(DocumentCachePolicy.Type.LRU, 10, maxBytes, -1, false).applyTo(context);
+        List<String> evicted = new ArrayList<String>();
+        CacheListener listener = recordEvictions(evicted);
+        CacheStatistics.addListener(listener);
+        try {
+            ImageSessionContext session = new DefaultImageSessionContext(context, null);
+            ImagePDF rotate = load(PDFBoxAdapterTestCase.ROTATE, session);
+            ImagePDF link = load("/link.pdf", session);
+            Assert.assertEquals("[rotate.pdf]", evicted.toString());
+            //the newest document is kept even though it exceeds the limit on its own
+            ImagePDF xform = load("/xform.pdf", session);
+            Assert.assertEquals("[rotate.pdf, link.pdf]", evicted.toString());
+            DocumentSession.end(session);
+            Assert.assertTrue(rotate.getDocumentHandle().isClosed());
+            Assert.assertTrue(link.getDocumentHandle().isClosed());
+            Assert.assertFalse(xform.getDocumentHandle().isClosed());
+        } finally {
+            CacheStatistics.removeListener(listener);
+        }
+    }
+
+    private CacheListener recordEvictions(final List<String> evicted) {
+        return new CacheListener() {
+            public void hit(CacheStatistics cache, Object key) {
+            }
+            public void miss(CacheStatistics cache, Object key) {
+            }
+            public void loaded(CacheStatistics cache, Object key, long nanos) {
+            }
+            public void evicted(CacheStatistics cache, Object key) {
+                String path = String.valueOf(key);
+                synchronized (evicted) {
+                    evicted.add(path.substring(path.lastIndexOf('/') + 1));
+                }
+            }
+        };
+    }
+
+    /** preloads a PDF and loads it into a rendering session as FOP does */
+    private ImagePDF load(String pdf, ImageSessionContext session) throws Exception {
+        File file = new File(getClass().getResource(pdf).toURI());
+        String uri = file.toURI().toString();
+        ImageSource imageSource = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+        ImageInfo info;
+        try {
+            info = new PreloaderPDF().preloadImage(uri, imageSource, session.getParentContext());
+        } finally {
+            ImageUtil.closeQuietly(imageSource);
+        }
+        return (ImagePDF) new ImageLoaderPDF(ImagePDF.PDFBOX_IMAGE).loadImage(info, null, session);
+    }
+
+    @Test
+    public void testConcurrentPreloadLoadsDocumentOnce() throws Exception {
+        String[] pdfs = new String[] {PDFBoxAdapterTestCase.ROTATE};
+        ConcurrentHashMap<Object, AtomicInteger> loads = new ConcurrentHashMap<Object, AtomicInteger>();
+        List<Future<PDDocument>> results = preloadConcurrently(new DefaultImageContext(), pdfs, loads);
+        PDDocument first = results.get(0).get();
+        for (Future<PDDocument> result : results) {
+            Assert.assertSame(first, result.get());
+        }
+        assertLoadedOnce(pdfs, loads);
+    }
+
+    @Test
+    public void testConcurrentPreloadOfSharedDocuments() throws Exception {
+        String[] pdfs = new String[] {PDFBoxAdapterTestCase.ROTATE, "/image.pdf", "/link.pdf", "/xform.pdf"};
+        ConcurrentHashMap<Object, AtomicInteger> loads = new ConcurrentHashMap<Object, AtomicInteger>();
+        //the default cache only keeps the document used last, which would drop the others
+        DefaultImageContext context = new DefaultImageContext();
+        DocumentCachePolicy defaults = DocumentCachePolicy.getDefault();
+        new DocumentCachePolicy(DocumentCachePolicy.Type.STRONG, defaults.getMaxEntries(), defaults.getMaxBytes(),
+                -1, false).applyTo(context);
+        List<PDDocument> documents = new ArrayList<PDDocument>();
+        for (Future<PDDocument> result : preloadConcurrently(context, pdfs, loads)) {
+            PDDocument doc = result.get();
+            Assert.assertTrue(doc.getNumberOfPages() > 0);
+            if (!documents.contains(doc)) {
+                documents.add(doc);
+            }
+        }
+        Assert.assertEquals(pdfs.length, documents.size());
+        assertLoadedOnce(pdfs, loads);
+    }
+
+    private void assertLoadedOnce(String[] pdfs, Map<Object, AtomicInteger> loads) throws Exception {
+        Assert.assertEquals(loads.toString(), pdfs.length, loads.size());
+        for (String pdf : pdfs) {
+            Object key = new File(getClass().getResource(pdf).toURI()).toURI();
+            Assert.assertEquals(pdf, 1, loads.get(key).get());
+        }
+    }
+
+    /**
+     * Preloads the given PDFs from 32 threads at once and counts the documents loaded by the
+     * document cache of the context, per key.
+     */
+    private List<Future<PDDocument>> preloadConcurrently(final DefaultImageContext context, final String[] pdfs,
+                                                         final ConcurrentHashMap<Object, AtomicInteger> loads)
+            throws InterruptedException, ExecutionException {
+        CacheListener listener = new CacheListener() {
+            public void hit(CacheStatistics cache, Object key) {
+            }
+            public void miss(CacheStatistics cache, Object key) {
+            }
+            public void loaded(CacheStatistics cache, Object key, long nanos) {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger previous = loads.putIfAbsent(key, count);
+                (previous != null ? previous : count).incrementAndGet();
+            }
+            public void evicted(CacheStatistics cache, Object key) {
+            }
+        };
+        CacheStatistics.addListener(listener);
+        try {
+            List<Future<PDDocument>> results = submitPreloads(context, pdfs);
+            for (Future<PDDocument> result : results) {
+                result.get();
+            }
+            return results;
+        } finally {
+            CacheStatistics.removeListener(listener);
+        }
+    }
+
+    private List<Future<PDDocument>> submitPreloads(final DefaultImageContext context, final String[] pdfs)
+            throws InterruptedException {
+        final int threads = 32;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<PDDocument>> results = new ArrayList<Future<PDDocument>>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                final String pdf = pdfs[i % pdfs.length];
+                results.add(executor.submit(new Callable<PDDocument>() {
+                    public PDDocument call() throws Exception {
+                        File file = new File(getClass().getResource(pdf).toURI());
+                        String uri = file.toURI().toString();
+                        ImageSource src = new ImageSource(ImageIO.createImageInputStream(file), uri, true);
+                        start.await();
+                        try {
+                            ImageInfo info = new PreloaderPDF().preloadImage(uri, src, context);
+                            return ((ImagePDF) info.getOriginalImage()).getPDDocument();
+                        } finally {
+                            ImageUtil.closeQuietly(src);
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.apache.commons.io.IOUtils;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.impl.ImageGraphics2D;
+
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.pdf.PDFArray;
+import org.apache.fop.pdf.PDFDocument;
+import org.apache.fop.pdf.PDFFilterList;
+import org.apache.fop.pdf.PDFPage;
+import org.apache.fop.pdf.PDFResources;
+
+import junit.framework.Assert;
+
+/**
+ * Tests of the background decoding of page contents. Run in a separate JVM with
+ * <code>fop.pdfbox.preloader-prefetch=1</code>, see the surefire configuration.
+ */
+public class PagePrefetcherTestCase {
+
+    @Test
+    public void testPrefetchedContentsAreTaken() throws Exception {
+        DocumentHandle handle = new DocumentHandle(createDocument(3), 0);
+        try {
+            Assert.assertTrue(PagePrefetcher.isEnabled());
+            PagePrefetcher.prefetch(handle, 0);
+            byte[] contents = handle.takePageContents(1);
+            Assert.assertTrue(Arrays.equals(decode(handle, 1), contents));
+            //handed out only once
+            Assert.assertNull(handle.takePageContents(1));
+            //outside the window of one page: left to the caller to decode inline
+            Assert.assertNull(handle.takePageContents(2));
+            Assert.assertTrue(handle.getPrefetchedContents().isEmpty());
+        } finally {
+            handle.release();
+        }
+    }
+
+    @Test
+    public void testPrefetchedAndInlineContentsAreImportedAlike() throws Exception {
+        DocumentHandle handle = new DocumentHandle(createDocument(3), 0);
+        try {
+            PagePrefetcher.prefetch(handle, 0);
+            byte[] contents = handle.takePageContents(1);
+            Assert.assertNotNull(contents);
+            Assert.assertTrue(importPage(handle, 1, contents).contains("0 0 20 20 re"));
+            Assert.assertTrue(importPage(handle, 2, handle.takePageContents(2)).contains("0 0 30 30 re"));
+        } finally {
+            handle.release();
+        }
+    }
+
+    @Test
+    public void testPainterHoldsDocumentLock() throws Exception {
+        DocumentHandle handle = new DocumentHandle(createDocument(1), 0);
+        try {
+            ImagePDF image = new ImagePDF(new ImageInfo("test.pdf", ImagePDF.MIME_PDF), handle);
+            final ImageGraphics2D g2dImage = (ImageGraphics2D) new ImageConverterPDF2G2D().convert(image, null);
+            final CountDownLatch painted = new CountDownLatch(1);
+            handle.getLock().lock();
+            try {
+                Thread painter = new Thread() {
+                    public void run() {
+                        BufferedImage bi = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+                        g2dImage.getGraphics2DImagePainter().paint(bi.createGraphics(),
+                                new Rectangle2D.Double(0, 0, 10, 10));
+                        painted.countDown();
+                    }
+                };
+                painter.setDaemon(true);
+                painter.start();
+                //e.g. a prefetch decoding another page of the document
+                Assert.assertFalse(painted.await(200, TimeUnit.MILLISECONDS));
+            } finally {
+                handle.getLock().unlock();
+            }
+            Assert.assertTrue(painted.await(10, TimeUnit.SECONDS));
+        } finally {
+            handle.release();
+        }
+    }
+
+    private PDDocument createDocument(int pages) throws Exception {
+        PDDocument doc = new PDDocument();
+        for (int i = 0; i < pages; i++) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            PDStream contents = new PDStream(doc);
+            OutputStream out = contents.createOutputStream(COSName.FLATE_DECODE);
+            out.write(("0 0 " + (i + 1) + "0 " + (i + 1) + "0 re f\n").getBytes("ISO-8859-1"));
+            out.close();
+            page.setContents(contents);
+            page.setResources(new PDResources());
+            doc.addPage(page);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        doc.save(bos);
+        doc.close();
+        return PDDocument.load(bos.toByteArray());
+    }
+
+    private byte[] decode(DocumentHandle handle, int page) throws Exception {
+        InputStream in = handle.getDocument().getPage(page).getContents();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private String importPage(DocumentHandle handle, int page, byte[] contents) throws Exception {
+        PDFDocument pdfDoc = new PDFDocument("");
+        pdfDoc.getFilterMap().put(PDFFilterList.DEFAULT_FILTER, Arrays.asList("null"));
+        Rectangle r = new Rectangle(0, 0, 595000, 842000);
+        PDFPage pdfPage = new PDFPage(new PDFResources(pdfDoc), 0, r, r, r, r);
+        pdfPage.setDocument(pdfDoc);
+        pdfPage.setObjectNumber(1);
+        PDFBoxAdapter adapter = new PDFBoxAdapter(pdfPage, new CloneCache(), new HashMap<Integer, PDFArray>());
+        adapter.setPageContents(contents);
+        String stream = adapter.createStreamFromPDFBoxPage(handle.getDocument(), handle.getDocument().getPage(page),
+                "test.pdf", new AffineTransform(), new FontInfo(), r);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        pdfDoc.output(bos);
+        return stream + bos.toString("ISO-8859-1");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/* $Id$ */
+
+package org.apache.fop.render.pdf.pdfbox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URI;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import org.apache.xmlgraphics.image.loader.ImageSource;
+
+import junit.framework.Assert;
+
+/**
+ * Tests of the main memory budget for parsing. Run in a separate JVM with
+ * <code>fop.pdfbox.scratch.max-memory=1000000</code>, see the surefire configuration.
+ */
+public class ScratchMemoryBudgetTestCase {
+
+    private static final long MAX_MEMORY = 1000000;
+
+    @Test
+    public void testReservationIsSizedFromExpectedBytes() {
+        Assert.assertEquals(MAX_MEMORY, ScratchMemoryBudget.getAvailableMemory());
+        ScratchMemoryBudget.Reservation small = ScratchMemoryBudget.reserve(1000);
+        ScratchMemoryBudget.Reservation other = ScratchMemoryBudget.reserve(2000);
+        try {
+            Assert.assertEquals(1000, small.getBytes());
+            Assert.assertEquals(2000, other.getBytes());
+            Assert.assertEquals(MAX_MEMORY - 3000, ScratchMemoryBudget.getAvailableMemory());
+        } finally {
+            small.close();
+            other.close();
+        }
+        Assert.assertEquals(MAX_MEMORY, ScratchMemoryBudget.getAvailableMemory());
+    }
+
+    @Test
+    public void testUnusedShareIsHandedBack() {
+        ScratchMemoryBudget.Reservation unknown = ScratchMemoryBudget.reserve(-1);
+        try {
+            Assert.assertEquals(MAX_MEMORY, unknown.getBytes());
+            Assert.assertEquals(0, ScratchMemoryBudget.getAvailableMemory());
+            unknown.fit(5000);
+            Assert.assertEquals(5000, unknown.getBytes());
+            Assert.assertEquals(MAX_MEMORY - 5000, ScratchMemoryBudget.getAvailableMemory());
+            //never grows
+            unknown.fit(10000);
+            Assert.assertEquals(5000, unknown.getBytes());
+        } finally {
+            unknown.close();
+            unknown.close();
+        }
+        Assert.assertEquals(MAX_MEMORY, ScratchMemoryBudget.getAvailableMemory());
+    }
+
+    @Test
+    public void testLoadedDocumentsLeaveBudgetForOthers() throws Exception {
+        File file = new File("src/test/resources/image.pdf");
+        URI fileURI = file.toURI();
+        DocumentHandle fromFile = make(file, fileURI);
+        DocumentHandle fromStream = make(file, new URI("http://example.invalid/image.pdf"));
+        try {
+            Assert.assertEquals(MAX_MEMORY - file.length() - 2 * fromStream.getSize(),
+                    ScratchMemoryBudget.getAvailableMemory());
+        } finally {
+            release(fromFile);
+            release(fromStream);
+        }
+        Assert.assertEquals(MAX_MEMORY, ScratchMemoryBudget.getAvailableMemory());
+    }
+
+    private DocumentHandle make(File file, URI uri) throws Exception {
+        ImageSource src = new ImageSource(ImageIO.createImageInputStream(new FileInputStream(file)),
+                uri.toString(), true);
+        return new PreloaderPDF.DocumentMaker(src, uri, null).make();
+    }
+
+    /** releases the caller's and the cache's reference */
+    private void release(DocumentHandle handle) {
+        handle.release();
+        handle.release();
+        Assert.assertTrue(handle.isClosed());
+    }
+}